@@ -0,0 +1,80 @@
+package example;
+
+import gnu.cajo.invoke.Remote;
+import gnu.cajo.utils.*;
+import java.io.*;
+import java.net.Socket;
+
+// Micro-benchmark of the CodebaseServer applet and WebStart pages.
+// optional arguments; previous must be declared, but not successive:
+// - number of concurrent client connections (default = 4)
+// - seconds to run each page (default = 5)
+// Each client keeps its connection alive, asking for one page at a time.
+public class PageBench {
+   static volatile boolean running;
+   static long requests;
+   public static void main(String args[]) throws Exception {
+      int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+      int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      Remote.config("127.0.0.1", 0, "127.0.0.1", 0);
+      CodebaseServer cs = new CodebaseServer(null, 0);
+      ItemServer.bind(new Object(), "main");
+      run("warm-up", "/1198:1199-main", cs.serverPort, clients, 1);
+      run("applet", "/1198:1199-main", cs.serverPort, clients, seconds);
+      run("jnlp", "/1198:1199-main!", cs.serverPort, clients, seconds);
+      System.exit(0);
+   }
+   static void run(String page, final String path, final int port,
+      int clients, int seconds) throws Exception {
+      requests = 0;
+      running = true;
+      Thread threads[] = new Thread[clients];
+      for (int i = 0; i < clients; i++) {
+         threads[i] = new Thread() {
+            public void run() {
+               try { client(path, port); }
+               catch(Exception x) { x.printStackTrace(System.err); }
+            }
+         };
+         threads[i].start();
+      }
+      long start = System.currentTimeMillis();
+      Thread.sleep(seconds * 1000L);
+      running = false;
+      for (int i = 0; i < clients; i++) threads[i].join();
+      long time = System.currentTimeMillis() - start;
+      System.out.println(page + ":\t" + requests * 1000 / time +
+         " requests/second, " + clients + " clients");
+   }
+   static void client(String path, int port) throws Exception {
+      Socket s = new Socket("127.0.0.1", port);
+      OutputStream os = s.getOutputStream();
+      DataInputStream is =
+         new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      byte request[] = ("GET " + path + " HTTP/1.1\r\n" +
+         "Host: 127.0.0.1\r\n\r\n").getBytes();
+      byte body[] = new byte[0x1000];
+      long count = 0;
+      while (running) {
+         os.write(request);
+         int length = -1;
+         for (String line; (line = line(is)).length() > 0;)
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+               length = Integer.parseInt(line.substring(15).trim());
+         if (length < 0) throw new IOException("No Content-Length");
+         if (length > body.length) body = new byte[length];
+         is.readFully(body, 0, length);
+         count++;
+      }
+      s.close();
+      synchronized(PageBench.class) { requests += count; }
+   }
+   static String line(InputStream is) throws IOException { // to the CRLF
+      StringBuffer sb = new StringBuffer();
+      for (int c; (c = is.read()) != '\n';) {
+         if (c == -1) throw new EOFException("Connection closed");
+         if (c != '\r') sb.append((char)c);
+      }
+      return sb.toString();
+   }
+}
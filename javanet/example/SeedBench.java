@@ -0,0 +1,57 @@
+package example;
+
+import gnu.cajo.Cajo;
+import gnu.cajo.invoke.Remote;
+
+// Loopback check of discovery by seed registrars, without multicast.
+// Two cajo objects share this JVM; the second has the first as its only
+// seed, the first has no seeds at all. An object exported by the second is
+// pushed to its seed immediately. An object exported by the first is only
+// pulled by the second on its next periodic exchange, so it must appear
+// within Cajo.SEED_INTERVAL; that is the bound this measures.
+// optional argument:
+// - number of rounds of each (default = 3)
+public class SeedBench {
+   public interface Pushed { String pushed(); }
+   public interface Pulled { String pulled(); }
+   public static class PushedItem implements Pushed {
+      public String pushed() { return "pushed"; }
+   }
+   public static class PulledItem implements Pulled {
+      public String pulled() { return "pulled"; }
+   }
+   public static void main(String args[]) throws Exception {
+      int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+      Remote.config("127.0.0.1", 0, "127.0.0.1", 0);
+      Cajo seed = new Cajo(new String[0]);
+      Cajo peer = new Cajo(new String[] {
+         "127.0.0.1:" + Remote.getDefaultServerPort() });
+      long limit = Cajo.SEED_BACKOFF + Cajo.SEED_INTERVAL;
+      boolean bounded = true;
+      for (int i = 0; i < rounds; i++) {
+         peer.export(new PushedItem());
+         long pushed = find(seed, Pushed.class, i + 1, limit);
+         seed.export(new PulledItem());
+         long pulled = find(peer, Pulled.class, i + 1, limit);
+         System.out.println("round " + (i + 1) + ":\tpushed in " +
+            (pushed < 0 ? "-" : pushed + "ms") + ", pulled in " +
+            (pulled < 0 ? "-" : pulled + "ms"));
+         bounded &= pushed >= 0 && pulled >= 0 &&
+            pulled <= Cajo.SEED_INTERVAL + 1000L;
+      }
+      System.out.println((bounded ? "within" : "NOT within") +
+         " SEED_INTERVAL (" + Cajo.SEED_INTERVAL + "ms)");
+      System.exit(bounded ? 0 : 1);
+   }
+   // time in ms until cajo finds count items of the method set, or -1
+   static long find(Cajo cajo, Class methodSet, int count, long limit)
+      throws Exception {
+      long start = System.currentTimeMillis();
+      do {
+         if (cajo.lookup(methodSet).length >= count)
+            return System.currentTimeMillis() - start;
+         Thread.sleep(10);
+      } while (System.currentTimeMillis() - start < limit);
+      return -1;
+   }
+}
@@ -7,10 +7,18 @@ import gnu.cajo.utils.ItemServer;
 import gnu.cajo.utils.extra.TransparentItemProxy;
 import java.lang.reflect.Method;
 import java.io.IOException;
+import java.io.FileReader;
+import java.io.BufferedReader;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Comparator;
+import java.util.Collections;
 import java.util.Vector;
+import java.util.TreeMap;
+import java.util.LinkedList;
 import java.util.ArrayList;
+import java.io.Serializable;
 import java.rmi.RemoteException;
 
 /*
@@ -44,23 +52,117 @@ import java.rmi.RemoteException;
  * @author John Catherino
  */
 public final class Cajo implements Grail {
+   /**
+    * This load balancing policy passes each invocation onto the next of the
+    * server references, in turn.
+    */
+   public static final int ROUND_ROBIN = 0;
+   /**
+    * This load balancing policy passes each invocation onto the server
+    * reference with the fewest invocations currently in progress.
+    */
+   public static final int LEAST_OUTSTANDING = 1;
+   /**
+    * This load balancing policy passes each invocation onto the server
+    * reference with the lowest exponentially weighted moving average of
+    * its invocation times.
+    */
+   public static final int LOWEST_LATENCY = 2;
+   /**
+    * This load balancing policy passes each invocation onto a server
+    * reference selected by a consistent hash of the first argument of the
+    * invocation. This keeps invocations concerning the same subject on the
+    * same server, while the server references come and go.
+    */
+   public static final int CONSISTENT_HASH = 3;
+   /**
+    * This load balancing policy passes each invocation onto the server
+    * reference with the lowest measured network round trip time, i.e. the
+    * nearest one. If it becomes unresponsive, the next nearest is used.
+    * References equally near, or not yet measured, are used in turn.
+    */
+   public static final int NEAREST = 4;
+   /**
+    * The interval, in milliseconds, between network round trip time
+    * measurements of all of the references in the federation item list.
+    */
+   public static final long PING_INTERVAL = 30000L;
+   /**
+    * The minimum interval, in milliseconds, between export announcements.
+    * Announcements made in quicker succession, e.g. when exporting many
+    * objects at startup, are coalesced.
+    */
+   public static final long ANNOUNCE_INTERVAL = 100L;
+   /**
+    * The interval, in milliseconds, between registry exchanges with each
+    * reachable seed registrar. An export triggers an immediate exchange.
+    */
+   public static final long SEED_INTERVAL = 10000L;
+   /**
+    * The maximum interval, in milliseconds, between attempts to reach an
+    * unreachable seed registrar. Starting at one second, the interval
+    * doubles with each failed attempt, until it reaches this value. It
+    * bounds the time to discover a seed registrar which comes online.
+    */
+   public static final long SEED_BACKOFF = 60000L;
    private final int ttl;
    private final Multicast multicast;
-   private final Vector items = new Vector();
+   private final Federation items = new Federation();
+   private final Hashtable latencies = new Hashtable();
+   private final Hashtable breakers = new Hashtable();
    private final Registrar registrar = new Registrar(items);
+   private final Vector seeders = new Vector();
+   private final Multicast.Beacon beacon;
+   private final Remote handle;
+   private final String name = name(); // the registrar's own binding
+   private static final Vector open = new Vector(); // instances, by age
+   private static int serial;
+   private Thread prober;
+   /**
+    * This internal use only helper class is the federation item list. It
+    * interns the remote object references; as RMI stubs are equal when they
+    * refer to the same remote object, i.e. the same endpoint and object ID,
+    * an index of them allows a reference arriving by way of any number of
+    * registries to be recognised in constant time. Only the first, i.e.
+    * <i>canonical,</i> stub of each remote object is retained. It is never
+    * sent to other JVMs, only {@link #copy copies} of its list are.
+    */
+   private static final class Federation {
+      private final Vector list = new Vector();
+      private final Hashtable index = new Hashtable();
+      private synchronized boolean add(Object ref) {
+         if (index.containsKey(ref)) return false;
+         index.put(ref, ref);
+         list.add(ref);
+         return true;
+      }
+      private synchronized boolean remove(Object ref) {
+         return index.remove(ref) != null && list.removeElement(ref);
+      }
+      private Object canonical(Object ref) {
+         Object canonical = index.get(ref);
+         return canonical != null ? canonical : ref;
+      }
+      private int size() { return list.size(); }
+      private Object[] toArray() { return list.toArray(); }
+      private Vector copy() { return new Vector(list); }
+   }
    /**
     * This internal use only helper class maintains a registry of exported
     * objects. It uses UDP multicasts to find other instances of registries,
     * and shares references between them.
     */
    private static final class Registrar {
-      private final Vector items;
-      private Registrar(Vector items) { this.items = items; }
+      private final Federation items;
+      private final Hashtable beacons = new Hashtable(); // not yet contacted
+      private Registrar(Federation items) { this.items = items; }
       /**
        * This method is called either when a Cajo instance starts up, or
        * exports an object reference. All operating servers will request the
        * collection of references owned by the remote JVM, and
-       * correspondingly send a copy of their registries.
+       * correspondingly send a copy of their registries. If the
+       * announcement was made with a beacon, the remote registrar is not
+       * contacted until the next lookup.
        * @param multicast A reference to the announcing JVM
        * @return null To keep the multicast object listening
        * @throws Exception if the request for remote references failed, or the
@@ -68,23 +170,35 @@ public final class Cajo implements Grail {
        * application specific reasons.
        */
       public Object multicast(Multicast multicast) throws Exception {
-         if (items.size() > 0 )
-            multicast.item.invoke("register", items);
-         register((Vector)multicast.item.invoke("request", null));
+         if (multicast.item != null) exchange(multicast.item);
+         else if (multicast.beacon != null) // fetch it only when needed
+            beacons.put(multicast.beacon.toString(), multicast.beacon);
          return null; // pass any list to announcer & keep listening
       }
+      private void exchange(Object registrar) throws Exception {
+         if (items.size() > 0)
+            Remote.invoke(registrar, "register", items.copy());
+         register((Vector)Remote.invoke(registrar, "request", null));
+      }
+      private void gather() { // exchange with registrars announced by beacon
+         Object keys[] = beacons.keySet().toArray();
+         for (int i = 0; i < keys.length; i++) {
+            Multicast.Beacon b = (Multicast.Beacon)beacons.remove(keys[i]);
+            if (b != null) try { exchange(b.fetch()); }
+            catch(Exception x) {} // it will be announced again, if alive
+         }
+      }
       /**
        * This method is called either by remote JVMs to provide a copy
        * of their registry, in response to a startup or export announcement.
-       * The registries will be merged, and duplicate references discarded.
+       * The registries will be merged, and duplicate references discarded,
+       * retaining only the first received stub for each remote object.
        * @param elements A collection of remote object references
        */
       public void register(Vector elements) { // include all responders
-         if (elements != null && elements.size() > 0) synchronized(items) {
+         if (elements != null)
             for (int i = 0; i < elements.size(); i++)
-               if (!(items.contains(elements.elementAt(i))))
-                  items.add(elements.elementAt(i));
-         }
+               items.add(elements.elementAt(i)); // duplicates are discarded
       }
       /**
        * This method allows remote JVMs to request the contents of the
@@ -93,7 +207,7 @@ public final class Cajo implements Grail {
        * @return The collection of remote object references currently
        * registered
        */
-      public Vector request() { return items; }
+      public Vector request() { return items.copy(); }
    };
    /**
     * This internal use only helper class scans an exported object to see if
@@ -122,6 +236,7 @@ public final class Cajo implements Grail {
        */
       public Object invoke(String method, Object args) throws Exception {
          if (method == null) { // special case signal
+            if (args == null) return Boolean.TRUE; // just a ping
             Class  ireturns[] = (Class[])((Object[])args)[0];
             String inames[]   = (String[])((Object[])args)[1];
             Class  iargs[][]  = (Class[][])((Object[])args)[2];
@@ -146,23 +261,102 @@ public final class Cajo implements Grail {
       }
    }
    /**
-    * This internal use only helper class automatically removes unresponsive
-    * server references from the internal queue.
+    * This internal use only helper class is a circuit breaker, guarding
+    * invocations on a single server reference. Following consecutive
+    * network failures it <i>opens;</i> invocations then fail immediately,
+    * rather than each waiting out a network timeout. After a cooling period
+    * it becomes <i>half-open,</i> and a single probe invocation is allowed
+    * through; if it succeeds the breaker <i>closes</i> again, otherwise it
+    * reopens, for twice as long. A reference which continues to fail is
+    * purged from the internal queue.
+    */
+   private static final class Breaker {
+      private static final int CLOSED = 0, OPEN = 1, HALFOPEN = 2;
+      private static final String STATES[] = { "closed", "open", "half-open" };
+      private static final int THRESHOLD = 3, PURGE = 10; // failures
+      private static final long COOLDOWN = 1000L, MAXCOOLDOWN = 60000L;
+      private int state, failures;
+      private long calls, faults, rejected, opened, cooldown = COOLDOWN;
+      private static Breaker get(Hashtable breakers, Object ref) {
+         synchronized(breakers) {
+            Breaker breaker = (Breaker)breakers.get(ref);
+            if (breaker == null) {
+               breaker = new Breaker();
+               breakers.put(ref, breaker);
+            }
+            return breaker;
+         }
+      }
+      private synchronized boolean recovering() {
+         return state == OPEN &&
+            System.currentTimeMillis() - opened >= cooldown;
+      }
+      private synchronized boolean available() {
+         return state == CLOSED || recovering();
+      }
+      private synchronized boolean allow() {
+         if (recovering()) state = HALFOPEN; // this call is the probe
+         else if (state != CLOSED) {
+            rejected++;
+            return false;
+         }
+         calls++;
+         return true;
+      }
+      private synchronized void success() {
+         state    = CLOSED;
+         failures = 0;
+         cooldown = COOLDOWN;
+      }
+      private synchronized boolean failure() { // true if it should be purged
+         faults++;
+         failures++;
+         if (state == HALFOPEN) cooldown = Math.min(cooldown * 2, MAXCOOLDOWN);
+         if (state == HALFOPEN || failures >= THRESHOLD) {
+            state  = OPEN;
+            opened = System.currentTimeMillis();
+         }
+         return failures >= PURGE;
+      }
+      private synchronized Object[] health(long latency) {
+         return new Object[] { STATES[state], new Long(calls),
+            new Long(faults), new Long(rejected), new Long(latency) };
+      }
+   }
+   /**
+    * This internal use only helper class guards invocations on a server
+    * reference with its circuit breaker, and automatically removes
+    * persistently unresponsive server references from the internal queue.
     */
    private static final class Purger implements Invoke {
       private static final long serialVersionUID = 1L;
       private final Object object;
-      private final Vector items;
+      private final Vector items; // only in other JVMs, a copy of the list
+      private transient Federation federation;
+      private transient Hashtable breakers;
+      private Purger(Object object, Federation federation,
+         Hashtable breakers) {
+         this(object, (Vector)null);
+         this.federation = federation;
+         this.breakers = breakers;
+      }
       private Purger(Object object, Vector items) {
          this.object = object;
          this.items = items;
       }
+      private Object writeReplace() { // send a plain list, as always
+         return federation != null ?
+            new Purger(object, federation.copy()) : this;
+      }
       /**
        * This method, invoked transparently when any remote server method is
-       * called, monitors the progress of the invocation. If the call results
-       * in a java.rmi.RemoteException, the server object reference will be
-       * deleted from the internal queue automatically. All exceptions will
-       * be propagated out to the client.
+       * called, monitors the progress of the invocation. While the circuit
+       * breaker for the server object reference is open, the invocation
+       * will fail immediately with a java.rmi.ConnectException. If the call
+       * results in a java.rmi.RemoteException, the failure is counted by the
+       * breaker; if the reference fails persistently, it will be deleted
+       * from the internal queue automatically. All exceptions will be
+       * propagated out to the client.
        * @param method The name of the method to be invoked
        * @param args The arguments to be provided to the method
        * @return The result, if any, returned by the remote procedure call
@@ -170,11 +364,519 @@ public final class Cajo implements Grail {
        * reasons
        */
       public Object invoke(String method, Object args) throws Exception {
+         Breaker breaker =
+            breakers != null ? Breaker.get(breakers, object) : null;
+         if (breaker != null && !breaker.allow()) throw new
+            java.rmi.ConnectException("Circuit open to " + object);
+         boolean failed = false;
          try { return Remote.invoke(object, method, args); }
          catch(IOException x) { // if object is not responsive
-            items.remove(object);
+            failed = true;
+            if (breaker != null && !breaker.failure()) throw x;
+            if (federation != null) federation.remove(object);
+            else if (items != null) items.remove(object);
             throw x;
+         } finally { if (!failed && breaker != null) breaker.success(); }
+      }
+   }
+   /**
+    * This internal use only helper class periodically measures the network
+    * round trip time to each of the references in the internal queue, by
+    * means of a lightweight ping. In between, it probes the references
+    * whose circuit breakers are ready to test recovery. Persistently
+    * unresponsive server references are removed from the internal queue
+    * automatically.
+    */
+   private static final class Prober implements Runnable {
+      private static final long PROBE_INTERVAL = 1000L;
+      private static final long PING_TIMEOUT = 5000L;
+      private static final int PINGERS = 8; // threads sending the pings
+      private final Federation items;
+      private final Hashtable latencies, breakers;
+      private final HashSet pinging = new HashSet(); // awaiting replies
+      private final LinkedList queue = new LinkedList(); // pings unsent
+      private final class Ping implements Runnable {
+         private final Object ref;
+         private final Breaker breaker;
+         private boolean started, done, responded;
+         private long rtt;
+         private Ping(Object ref, Breaker breaker) {
+            this.ref = ref;
+            this.breaker = breaker;
+         }
+         public void run() {
+            synchronized(this) {
+               if (done) return; // abandoned, not sent in time
+               started = true;
+            }
+            long time = System.currentTimeMillis();
+            boolean responded = true;
+            try { Remote.invoke(ref, null, null); }
+            catch(IOException x) { responded = false; } // not responsive
+            catch(Exception x) {} // it responded nevertheless
+            synchronized(pinging) { pinging.remove(ref); }
+            synchronized(this) {
+               rtt = System.currentTimeMillis() - time;
+               this.responded = responded;
+               done = true;
+               notify();
+            }
+         }
+         private synchronized void settle(long deadline)
+            throws InterruptedException {
+            for (long wait; !done &&
+               (wait = deadline - System.currentTimeMillis()) > 0;) wait(wait);
+            if (!started) { // the pingers were busy, so it is not its fault
+               done = true;
+               synchronized(queue) { queue.remove(this); }
+               synchronized(pinging) { pinging.remove(ref); }
+            } else if (responded) {
+               breaker.success();
+               sample(latencies, ref, rtt);
+            } else if (breaker.failure()) items.remove(ref); // or too slow
+         }
+      }
+      private Prober(Federation items, Hashtable latencies,
+         Hashtable breakers) {
+         this.items = items;
+         this.latencies = latencies;
+         this.breakers = breakers;
+      }
+      /**
+       * The monitor thread, it pings every available reference in the
+       * internal queue each PING_INTERVAL, and probes recovering references
+       * every second. The pings are sent in parallel, by a small pool of
+       * threads; each must be answered within five seconds, otherwise it
+       * counts as a failure. A ping not sent in time, as the pool is busy,
+       * is abandoned instead. A reference still not answering its previous
+       * ping is not sent another.
+       */
+      public void run() {
+         long swept = 0;
+         Thread pingers[] = new Thread[PINGERS];
+         for (int i = 0; i < pingers.length; i++) {
+            pingers[i] = new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     while (true) {
+                        Runnable ping;
+                        synchronized(queue) {
+                           while (queue.isEmpty()) queue.wait();
+                           ping = (Runnable)queue.removeFirst();
+                        }
+                        ping.run();
+                     }
+                  } catch(InterruptedException x) {}
+               }
+            });
+            pingers[i].setDaemon(true);
+            pingers[i].start();
+         }
+         try {
+            while (!Thread.currentThread().isInterrupted()) {
+               boolean sweep =
+                  System.currentTimeMillis() - swept >= PING_INTERVAL;
+               if (sweep) { // forget about references no longer queued
+                  swept = System.currentTimeMillis();
+                  HashSet queued = new HashSet(Arrays.asList(items.toArray()));
+                  latencies.keySet().retainAll(queued);
+                  breakers.keySet().retainAll(queued);
+               }
+               Object elements[] = items.toArray();
+               Vector pings = new Vector();
+               for (int i = 0; i < elements.length; i++) {
+                  Breaker breaker = Breaker.get(breakers, elements[i]);
+                  if (sweep ? !breaker.available() : !breaker.recovering())
+                     continue;
+                  synchronized(pinging) {
+                     if (pinging.contains(elements[i])) { // still waiting
+                        if (sweep && breaker.failure())
+                           items.remove(elements[i]);
+                        continue;
+                     }
+                     if (!breaker.allow()) continue;
+                     pinging.add(elements[i]);
+                  }
+                  Ping ping = new Ping(elements[i], breaker);
+                  synchronized(queue) {
+                     queue.add(ping);
+                     queue.notify();
+                  }
+                  pings.add(ping);
+               }
+               long deadline = System.currentTimeMillis() + PING_TIMEOUT;
+               for (int i = 0; i < pings.size(); i++)
+                  ((Ping)pings.elementAt(i)).settle(deadline);
+               Thread.sleep(PROBE_INTERVAL);
+            }
+         } catch(InterruptedException x) {}
+         finally {
+            for (int i = 0; i < pingers.length; i++) pingers[i].interrupt();
+         }
+      }
+   }
+   /**
+    * This internal use only helper method records a round trip time sample
+    * for a reference into a moving average.
+    */
+   private static void sample(Hashtable latencies, Object ref, long rtt) {
+      synchronized(latencies) {
+         Long old = (Long)latencies.get(ref);
+         latencies.put(ref, new Long(old == null ? rtt :
+            old.longValue() + (rtt - old.longValue()) / 4));
+      }
+   }
+   /**
+    * This internal use only helper class distributes invocations across a
+    * collection of equivalent server references, according to a selection
+    * policy. References whose circuit breakers are open are passed over,
+    * until they recover. Should an invocation fail to reach its server, or
+    * fail in any way, if the method is idempotent, it is transparently
+    * passed onto one of the remaining references. Persistently unresponsive
+    * server references are removed from the internal queue.
+    * Invocations of idempotent methods are hedged; if the selected reference
+    * has not responded within the 95th percentile of recent invocation
+    * times, the invocation is also sent to another reference, and the first
+    * response is taken. The attempts are made by a pool of reused threads,
+    * rather than a new thread for each. The slower attempt is not
+    * cancelled; it runs to completion, and its result is discarded.
+    */
+   private static final class Balancer implements Invoke {
+      private static final long serialVersionUID = 1L;
+      private static final int POINTS = 64; // hash ring points per node
+      private static final int SAMPLES = 128, MINSAMPLES = 16;
+      private static final long HEDGE = 250L; // delay before enough samples
+      private static final long IDLE = 60000L; // before a pooled thread ends
+      private static final LinkedList attempts = new LinkedList(); // waiting
+      private static int idle; // pooled threads waiting for attempts
+      private static final class Race { // shared by both hedged invocations
+         private Object result;
+         private Exception failure;
+         private boolean done;
+         private int running;
+      }
+      private static final class Node implements Serializable {
+         private static final long serialVersionUID = 1L;
+         private final Object ref;
+         private int outstanding;
+         private double latency;
+         private Node(Object ref) { this.ref = ref; }
+      }
+      private final Vector nodes = new Vector();
+      private transient Federation items; // only in this JVM
+      private final int policy;
+      private transient Hashtable latencies, breakers;
+      private transient TreeMap ring;
+      private final HashSet idempotent;
+      private final long samples[] = new long[SAMPLES];
+      private int next, sampled;
+      private Balancer(Object references[], Federation items,
+         Hashtable latencies, Hashtable breakers, int policy,
+         HashSet idempotent) {
+         for (int i = 0; i < references.length; i++)
+            nodes.add(new Node(references[i]));
+         this.items  = items;
+         this.policy = policy;
+         this.latencies  = latencies;
+         this.breakers   = breakers;
+         this.idempotent = idempotent;
+      }
+      private void readObject(java.io.ObjectInputStream in)
+         throws IOException, ClassNotFoundException {
+         in.defaultReadObject();
+         breakers = new Hashtable(); // guard the references in this JVM too
+      }
+      private static int mix(int h) { // spread poorly distributed hashes
+         h ^= h >>> 16;
+         h *= 0x85ebca6b;
+         h ^= h >>> 13;
+         h *= 0xc2b2ae35;
+         return h ^ h >>> 16;
+      }
+      private Breaker breaker(Node node) {
+         return Breaker.get(breakers, node.ref);
+      }
+      private boolean usable(Node node, HashSet tried) {
+         return !tried.contains(node) && breaker(node).available();
+      }
+      private Node select(Object args, HashSet tried) {
+         synchronized(nodes) {
+            if (nodes.size() == 0) return null;
+            Node node = null;
+            if (policy == LEAST_OUTSTANDING) {
+               for (int i = 0; i < nodes.size(); i++) {
+                  Node n = (Node)nodes.elementAt((next + i) % nodes.size());
+                  if (usable(n, tried) &&
+                     (node == null || n.outstanding < node.outstanding))
+                     node = n;
+               }
+               next = (next + 1) % nodes.size();
+            } else if (policy == LOWEST_LATENCY) {
+               for (int i = 0; i < nodes.size(); i++) {
+                  Node n = (Node)nodes.elementAt(i);
+                  if (!usable(n, tried)) continue;
+                  if (n.latency == 0) { node = n; break; } // untried yet
+                  if (node == null || n.latency < node.latency) node = n;
+               }
+            } else if (policy == NEAREST && latencies != null) {
+               long best = 0;
+               for (int i = 0; i < nodes.size(); i++) { // ties in turn
+                  Node n = (Node)nodes.elementAt((next + i) % nodes.size());
+                  if (!usable(n, tried)) continue;
+                  Long rtt = (Long)latencies.get(n.ref);
+                  long l = rtt != null ? rtt.longValue() : Long.MAX_VALUE;
+                  if (node == null || l < best) {
+                     node = n;
+                     best = l;
+                  }
+               }
+               next = (next + 1) % nodes.size();
+            } else if (policy == CONSISTENT_HASH && args != null) {
+               if (ring == null) {
+                  ring = new TreeMap();
+                  for (int i = 0; i < nodes.size(); i++) {
+                     Node n = (Node)nodes.elementAt(i);
+                     for (int j = 0; j < POINTS; j++)
+                        ring.put(new Integer(mix(n.ref.hashCode() * 31 + j)), n);
+                  }
+               }
+               Object key = args instanceof Object[] ?
+                  ((Object[])args).length > 0 ? ((Object[])args)[0] : null :
+                  args;
+               Integer hash = new Integer(key != null ? mix(key.hashCode()) : 0);
+               ArrayList walk = new ArrayList(ring.tailMap(hash).values());
+               walk.addAll(ring.headMap(hash).values()); // wrap around
+               for (int i = 0; i < walk.size() && node == null; i++)
+                  if (usable((Node)walk.get(i), tried))
+                     node = (Node)walk.get(i);
+            } else {
+               for (int i = 0; i < nodes.size() && node == null; i++) {
+                  next = next % nodes.size();
+                  Node n = (Node)nodes.elementAt(next++);
+                  if (usable(n, tried)) node = n;
+               }
+            }
+            if (node != null) node.outstanding++;
+            return node;
+         }
+      }
+      private Node other(Node node) { // the least busy of the rest
+         synchronized(nodes) {
+            Node other = null;
+            HashSet tried = new HashSet();
+            tried.add(node);
+            for (int i = 0; i < nodes.size(); i++) {
+               Node n = (Node)nodes.elementAt(i);
+               if (usable(n, tried) && (other == null ||
+                  n.outstanding < other.outstanding)) other = n;
+            }
+            if (other != null) other.outstanding++;
+            return other;
+         }
+      }
+      private long delay() { // 95th percentile of recent invocation times
+         long sorted[];
+         synchronized(nodes) {
+            if (sampled < MINSAMPLES) return HEDGE;
+            sorted = new long[sampled < SAMPLES ? sampled : SAMPLES];
+            System.arraycopy(samples, 0, sorted, 0, sorted.length);
+         }
+         Arrays.sort(sorted);
+         return sorted[sorted.length * 95 / 100] + 1;
+      }
+      private void release(Node node, long time, boolean purge) {
+         synchronized(nodes) {
+            node.outstanding--;
+            if (time != 0) {
+               long sample = System.currentTimeMillis() - time;
+               samples[sampled++ % SAMPLES] = sample;
+               if (sampled == SAMPLES * 2) sampled = SAMPLES; // no overflow
+               node.latency = node.latency == 0 ? sample + 1 :
+                  node.latency + (sample + 1 - node.latency) / 8;
+            }
+         }
+         if (purge && items != null) items.remove(node.ref);
+      }
+      /**
+       * This method, invoked transparently when any remote server method is
+       * called, selects a server reference on which to invoke the method.
+       * If the call results in a java.rmi.RemoteException, the failure is
+       * counted by the reference's circuit breaker. If the invocation could
+       * not reach the server, i.e. a java.rmi.ConnectException, or
+       * ConnectIOException, or the method is idempotent, it will be passed
+       * onto the next selected server reference; otherwise the server may
+       * already have performed it, and the exception is propagated.
+       * Persistently failing references will be deleted from the internal
+       * queue automatically. All other exceptions will be propagated out to
+       * the client.
+       * @param method The name of the method to be invoked
+       * @param args The arguments to be provided to the method
+       * @return The result, if any, returned by the remote procedure call
+       * @throws Exception For either network, or server object logic related
+       * reasons, if no server references remain available, the last network
+       * related exception will be thrown
+       */
+      public Object invoke(String method, Object args) throws Exception {
+         if (idempotent != null && idempotent.contains(method) &&
+            nodes.size() > 1) return hedge(method, args);
+         HashSet tried = new HashSet();
+         return call(select(args, tried), method, args, tried,
+            idempotent != null && idempotent.contains(method));
+      }
+      private Object call(Node node, String method, Object args,
+         HashSet tried, boolean repeatable) throws Exception {
+         IOException failure = null;
+         for (; node != null; node = select(args, tried)) {
+            tried.add(node);
+            Breaker breaker = breaker(node);
+            if (!breaker.allow()) {
+               release(node, 0, false);
+               continue;
+            }
+            long time = System.currentTimeMillis();
+            boolean purge = false;
+            try {
+               Object result = Remote.invoke(node.ref, method, args);
+               breaker.success();
+               return result;
+            } catch(IOException x) { // if object is not responsive
+               purge = breaker.failure();
+               time = 0;
+               if (!repeatable && !(x instanceof java.rmi.ConnectException ||
+                  x instanceof java.rmi.ConnectIOException))
+                  throw x; // the server may have performed it already
+               failure = x;
+            } catch(Exception x) { // it responded nevertheless
+               breaker.success();
+               throw x;
+            } finally { release(node, time, purge); }
          }
+         throw failure != null ? failure :
+            new java.rmi.ConnectException("No server references available");
+      }
+      private static void execute(Runnable attempt) { // on a pooled thread
+         synchronized(attempts) {
+            attempts.add(attempt);
+            if (idle >= attempts.size()) {
+               attempts.notify();
+               return;
+            }
+         }
+         Thread thread = new Thread() {
+            public void run() {
+               try {
+                  while (true) {
+                     Runnable attempt;
+                     synchronized(attempts) {
+                        idle++;
+                        try {
+                           long until = System.currentTimeMillis() + IDLE;
+                           for (long wait = IDLE; attempts.isEmpty();
+                              wait = until - System.currentTimeMillis()) {
+                              if (wait <= 0) return;
+                              attempts.wait(wait);
+                           }
+                        } finally { idle--; }
+                        attempt = (Runnable)attempts.removeFirst();
+                     }
+                     attempt.run();
+                  }
+               } catch(InterruptedException x) {}
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      private Runnable attempt(final Race race, final Node node,
+         final String method, final Object args) {
+         return new Runnable() {
+            public void run() {
+               Object result = null;
+               Exception failure = null;
+               try { result = call(node, method, args, new HashSet(), true); }
+               catch(Exception x) { failure = x; }
+               synchronized(race) {
+                  race.running--;
+                  if (!race.done) {
+                     if (failure instanceof IOException) // all unresponsive
+                        race.failure = failure;
+                     else {
+                        race.result  = result;
+                        race.failure = failure;
+                        race.done    = true;
+                     }
+                  }
+                  race.notifyAll();
+               }
+            }
+         };
+      }
+      private Object hedge(String method, Object args) throws Exception {
+         Race race = new Race();
+         Node node = select(args, new HashSet());
+         if (node == null) throw new
+            java.rmi.ConnectException("No server references available");
+         race.running = 1;
+         execute(attempt(race, node, method, args));
+         synchronized(race) {
+            if (!race.done && race.running > 0) race.wait(delay());
+            if (!race.done && race.running > 0) {
+               Node other = other(node);
+               if (other != null) {
+                  race.running++;
+                  execute(attempt(race, other, method, args));
+               }
+            }
+            while (!race.done && race.running > 0) race.wait();
+         }
+         if (race.failure != null) throw race.failure;
+         return race.result;
+      }
+   }
+   /**
+    * This internal use only helper class periodically exchanges registries
+    * with a remote registrar at a fixed address, for networks which do not
+    * pass multicast announcements. An unreachable registrar is retried with
+    * exponentially increasing delay.
+    */
+   private static final class Seeder implements Runnable {
+      private final String url;
+      private final Federation items;
+      private final Registrar registrar;
+      private Thread thread;
+      private boolean wake;
+      private Seeder(String url, Federation items, Registrar registrar) {
+         this.url = url;
+         this.items = items;
+         this.registrar = registrar;
+      }
+      private synchronized void wake() {
+         wake = true;
+         notify();
+      }
+      public void run() {
+         Object reg = null;
+         long delay, retry = 1000L;
+         try {
+            while (true) {
+               try {
+                  if (reg == null) reg = Remote.getItem(url);
+                  if (items.size() > 0)
+                     Remote.invoke(reg, "register", items.copy());
+                  registrar.register((Vector)Remote.invoke(reg, "request", null));
+                  delay = SEED_INTERVAL;
+                  retry = 1000L;
+               } catch(Exception x) { // look it up afresh next time
+                  reg = null;
+                  delay = retry;
+                  retry = Math.min(retry * 2, SEED_BACKOFF);
+               }
+               synchronized(this) {
+                  if (!wake) wait(delay);
+                  wake = false;
+               }
+            }
+         } catch(InterruptedException x) {}
       }
    }
    /**
@@ -201,13 +903,173 @@ public final class Cajo implements Grail {
     * @throws IOException If the startup announcement datagram packet could
     * not be sent
     */
-   public Cajo(int ttl) throws IOException {
+   public Cajo(int ttl) throws IOException { this(ttl, false); }
+   /**
+    * This constructor announces the cajo object on the cajo IANA standard
+    * address and port using a specific ttl value, optionally with compact
+    * {@link gnu.cajo.utils.Multicast.Beacon beacons}. A beacon is much
+    * smaller than the serialised registrar reference otherwise announced,
+    * and its receivers contact the registrar only when they next perform a
+    * lookup.
+    * <br><i><u>Note</u>:</i> cajo objects of earlier versions cannot read
+    * beacons; enable them only if all of the cajo objects on the network
+    * are of this version, or later.
+    * @param ttl The time for interface export announcements to live, as
+    * for the single argument constructor
+    * @param beacons If true, announce with beacons, otherwise announce the
+    * registrar reference, as earlier versions do
+    * @throws IOException If the startup announcement datagram packet could
+    * not be sent
+    */
+   public Cajo(int ttl, boolean beacons) throws IOException {
       if (ttl < 0 || ttl > 255) throw new
          IllegalArgumentException(ttl + "is an invalid ttl (0 - 255)");
       this.ttl = ttl;
-      multicast = new Multicast("224.0.23.162", 1198);
-      multicast.listen(registrar);
-      multicast.announce(ItemServer.bind(registrar, "registrar"), ttl);
+      multicast = Multicast.group(null, "224.0.23.162", 1198);
+      multicast.throttle(ANNOUNCE_INTERVAL);
+      multicast.listen(registrar, 4);
+      handle = ItemServer.bind(registrar, name);
+      share();
+      beacon = beacons ? new Multicast.Beacon(name, handle, 0) : null;
+      announce();
+      probe();
+   }
+   private void announce() throws IOException {
+      if (beacon != null) multicast.announce(beacon, ttl);
+      else multicast.announce(handle, ttl);
+   }
+   /**
+    * This constructor discovers other cajo objects without multicast; for
+    * networks which do not pass UDP multicast packets. It periodically
+    * exchanges registries with the registrars at the seed addresses, in
+    * parallel. Other cajo objects find this one, either by having it among
+    * their own seeds, or by its exchanges with them.<p>
+    * Discovery latency is bounded. An object exported here is sent to each
+    * reachable seed immediately. An object exported by a seed, or sent to
+    * it by another of its peers, is found here within {@link
+    * #SEED_INTERVAL SEED_INTERVAL} milliseconds. A seed which is not
+    * reachable is retried with increasing delay; once it comes online, it
+    * is reached within {@link #SEED_BACKOFF SEED_BACKOFF} milliseconds.
+    * Each bound is extended by the network time of the exchange itself.
+    * The example.SeedBench program measures this on the loopback interface.
+    * <br><i><u>Note</u>:</i> invoke gnu.cajo.invoke.Remote.config, and
+    * construct a gnu.cajo.utils.CodebaseServer if needed, to configure the
+    * JVM <i>before</i> invoking this constructor.
+    * @param seeds The addresses of remote cajo objects, each in the form
+    * <tt>host:port</tt>, as may be read from a file via the {@link #seeds
+    * seeds} method
+    * @throws IOException If the registrar could not be bound
+    * @throws IllegalArgumentException If a seed address is malformed
+    */
+   public Cajo(String seeds[]) throws IOException {
+      ttl = 0;
+      multicast = null;
+      beacon = null;
+      handle = ItemServer.bind(registrar, name);
+      share();
+      probe();
+      seed(seeds);
+   }
+   private static String name() {
+      synchronized(open) { return "registrar-" + serial++; }
+   }
+   private void share() throws IOException { // the oldest has the seed name
+      synchronized(open) {
+         if (open.size() == 0) ItemServer.bind(handle, "registrar");
+         open.add(this);
+      }
+   }
+   private void probe() {
+      prober = new Thread(new Prober(items, latencies, breakers));
+      prober.setDaemon(true);
+      prober.setPriority(Thread.MIN_PRIORITY);
+      prober.start();
+   }
+   /**
+    * This method adds seed addresses of remote cajo objects, with which
+    * registries are periodically exchanged, in addition to any discovery
+    * via multicast. Each seed is polled by its own thread, every {@link
+    * #SEED_INTERVAL SEED_INTERVAL} milliseconds, and immediately following
+    * an export. An unreachable seed is retried after one second, doubling
+    * with each failed attempt, up to {@link #SEED_BACKOFF SEED_BACKOFF}.
+    * @param seeds The addresses of remote cajo objects, each in the form
+    * <tt>host:port</tt>
+    * @throws IllegalArgumentException If a seed address is malformed
+    */
+   public void seed(String seeds[]) {
+      String urls[] = new String[seeds.length];
+      for (int i = 0; i < seeds.length; i++) {
+         int colon = seeds[i].lastIndexOf(':');
+         try {
+            if (colon < 1) throw new NumberFormatException();
+            int port = Integer.parseInt(seeds[i].substring(colon + 1).trim());
+            if (port < 0 || port > 0xFFFF) throw new NumberFormatException();
+            urls[i] = "//" + seeds[i].substring(0, colon).trim() + ':' +
+               port + "/registrar";
+         } catch(NumberFormatException x) {
+            throw new IllegalArgumentException(seeds[i] +
+               " is an invalid seed (host:port)");
+         }
+      }
+      for (int i = 0; i < urls.length; i++) {
+         Seeder seeder = new Seeder(urls[i], items, registrar);
+         seeders.add(seeder);
+         seeder.thread = new Thread(seeder);
+         seeder.thread.setDaemon(true);
+         seeder.thread.start();
+      }
+   }
+   /**
+    * This method shuts down the discovery of this cajo object. It stops
+    * listening for multicast announcements, which continue to be received
+    * by any other cajo objects in this JVM, stops polling its seeds, and
+    * measuring round trip times. Its registrar is unexported, so remote
+    * cajo objects can no longer exchange registries with it; the well known
+    * name <tt>registrar</tt>, by which seeds are contacted, passes to another
+    * open cajo object in this JVM, if there is one. Objects already
+    * exported remain so, and the proxies already obtained remain valid.
+    */
+   public void close() {
+      if (multicast != null) {
+         multicast.stop(registrar);
+         multicast.close(); // only closed once its last user closes it
+      }
+      for (int i = 0; i < seeders.size(); i++)
+         ((Seeder)seeders.elementAt(i)).thread.interrupt();
+      seeders.removeAllElements();
+      prober.interrupt();
+      synchronized(open) {
+         boolean oldest = open.indexOf(this) == 0;
+         open.remove(this);
+         if (oldest) try {
+            if (open.size() > 0) ItemServer.bind(
+               ((Cajo)open.firstElement()).handle, "registrar");
+            else ItemServer.unbind("registrar");
+         } catch(IOException x) {} // the registry is local
+      }
+      ItemServer.unbind(name);
+      try { handle.unexport(true); }
+      catch(java.rmi.NoSuchObjectException x) {}
+   }
+   /**
+    * This method reads a list of seed addresses from a text file, for use
+    * with the seed constructor, or the {@link #seed seed} method. The file
+    * contains one <tt>host:port</tt> address per line. Blank lines, and
+    * those starting with #, are ignored.
+    * @param file The path and name of the file
+    * @return The seed addresses contained in the file
+    * @throws IOException If the file could not be read
+    */
+   public static String[] seeds(String file) throws IOException {
+      Vector seeds = new Vector();
+      BufferedReader br = new BufferedReader(new FileReader(file));
+      try {
+         for (String line; (line = br.readLine()) != null;) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) seeds.add(line);
+         }
+      } finally { br.close(); }
+      return (String[])seeds.toArray(new String[seeds.size()]);
    }
    /**
     * This method makes any object's public methods, whether instance or
@@ -254,7 +1116,9 @@ public final class Cajo implements Grail {
     */
    public void export(Object object, Object target) throws IOException {
       items.add(new Remote(new Searchable(object, target)));
-      multicast.announce(registrar, ttl);
+      if (multicast != null) announce();
+      for (int i = 0; i < seeders.size(); i++)
+         ((Seeder)seeders.elementAt(i)).wake();
    }
    /**
     * This method finds all remotely invocable objects, supporting the
@@ -263,7 +1127,8 @@ public final class Cajo implements Grail {
     * @param methodSetInterface The interface of methods that remote objects
     * are required to support
     * @return An array of remote object references, specific to the
-    * framework, implementing the specified method collection
+    * framework, implementing the specified method collection, sorted by
+    * their network round trip time; nearest first
     * @throws Exception For any network or framework specific reasons<br>
     * <tt>java.lang.IllegalArgumentException</tt> - when the provided class
     * is <i>not</i> a Java interface
@@ -271,6 +1136,7 @@ public final class Cajo implements Grail {
    public Object[] lookup(Class methodSetInterface) throws Exception {
       if (!methodSetInterface.isInterface())
          throw new IllegalArgumentException("class must be an interface");
+      registrar.gather(); // from the registrars announced since
       Method methods[] = methodSetInterface.getMethods();
       Class returns[]  = new Class[methods.length];
       String names[]   = new String[methods.length];
@@ -283,10 +1149,33 @@ public final class Cajo implements Grail {
       Object params     = new Object[] { returns, names, args };
       ArrayList list    = new ArrayList();
       Object elements[] = items.toArray();
-      for (int i = 0; i < elements.length; i++) try {
-         if (Boolean.TRUE.equals(Remote.invoke(elements[i], null, params)))
-            list.add(elements[i]);
-      } catch(Exception x) { items.removeElement(elements[i]); }
+      for (int i = 0; i < elements.length; i++) {
+         Breaker breaker = Breaker.get(breakers, elements[i]);
+         if (!breaker.available() || !breaker.allow()) continue;
+         boolean counted = false;
+         try {
+            long time = System.currentTimeMillis();
+            Object match = Remote.invoke(elements[i], null, params);
+            counted = true;
+            breaker.success();
+            sample(latencies, elements[i], System.currentTimeMillis() - time);
+            if (Boolean.TRUE.equals(match)) list.add(elements[i]);
+         } catch(IOException x) { // if object is not responsive
+            counted = true;
+            if (breaker.failure()) items.remove(elements[i]);
+         } catch(Exception x) { items.remove(elements[i]); }
+         finally { // never leave a half-open probe outstanding
+            if (!counted) breaker.failure();
+         }
+      }
+      Collections.sort(list, new Comparator() { // nearest first
+         public int compare(Object o1, Object o2) {
+            long l1 = latency(o1), l2 = latency(o2);
+            if (l1 == -1) l1 = Long.MAX_VALUE;
+            if (l2 == -1) l2 = Long.MAX_VALUE;
+            return l1 < l2 ? -1 : l1 > l2 ? 1 : 0;
+         }
+      });
       return list.toArray();
    }
    /**
@@ -304,9 +1193,141 @@ public final class Cajo implements Grail {
     * @return An object implementing the method set interface provided.
     */
    public Object proxy(Object reference, Class methodSetInterface) {
-      return TransparentItemProxy.getItem(new Purger(reference, items),
+      return TransparentItemProxy.getItem(
+         new Purger(items.canonical(reference), items, breakers),
          new Class[] { methodSetInterface });
    }
+   /**
+    * This method instantiates a <a href=http://java.sun.com/j2se/1.3/docs/guide/reflection/proxy.html>
+    * Dynamic Proxy</a> at the client, which implements the method set
+    * specified, on behalf of a collection of equivalent remote object
+    * references. Invocations are passed onto the {@link #NEAREST nearest}
+    * responsive reference, by measured network round trip time; those
+    * equally near, or not yet measured, are used in turn.
+    * @param references The remote object references returned by the
+    * lookup method of this interface
+    * @param methodSetInterface The set <i>(or subset)</i> of public methods,
+    * static or instance, that the object references implement
+    * @return An object implementing the method set interface provided.
+    * @throws IllegalArgumentException If no references are provided
+    */
+   public Object proxy(Object references[], Class methodSetInterface) {
+      return proxy(references, methodSetInterface, NEAREST);
+   }
+   /**
+    * This method instantiates a <a href=http://java.sun.com/j2se/1.3/docs/guide/reflection/proxy.html>
+    * Dynamic Proxy</a> at the client, which implements the method set
+    * specified, on behalf of a collection of equivalent remote object
+    * references. Each invocation will be passed onto a reference selected
+    * by the load balancing policy. If a reference becomes unresponsive, it
+    * is passed over until its circuit breaker has recovered, and an
+    * invocation which could not reach it will be transparently retried on
+    * the remaining references. An invocation which failed after reaching a
+    * server is not retried, as it may already have been performed, unless
+    * its method is declared idempotent.
+    * @param references The remote object references returned by the
+    * lookup method of this interface, typically all of them
+    * @param methodSetInterface The set <i>(or subset)</i> of public methods,
+    * static or instance, that the object references implement
+    * @param policy The load balancing policy: {@link #ROUND_ROBIN
+    * ROUND_ROBIN}, {@link #LEAST_OUTSTANDING LEAST_OUTSTANDING},
+    * {@link #LOWEST_LATENCY LOWEST_LATENCY}, {@link #CONSISTENT_HASH
+    * CONSISTENT_HASH}, or {@link #NEAREST NEAREST}
+    * @return An object implementing the method set interface provided.
+    * @throws IllegalArgumentException If no references are provided, or
+    * the policy is unknown
+    */
+   public Object proxy(Object references[], Class methodSetInterface,
+      int policy) {
+      return proxy(references, methodSetInterface, policy, null);
+   }
+   /**
+    * This method instantiates a <a href=http://java.sun.com/j2se/1.3/docs/guide/reflection/proxy.html>
+    * Dynamic Proxy</a> at the client, which implements the method set
+    * specified, on behalf of a collection of equivalent remote object
+    * references, exactly as the three argument proxy method. Additionally,
+    * invocations of the idempotent methods are <i>hedged;</i> if the
+    * selected reference has not responded within the 95th percentile of
+    * recent invocation times, the invocation is also sent to another
+    * reference, and the first response is taken. The slower invocation is
+    * not cancelled; it still runs to completion at its server, and its
+    * result is discarded.
+    * <p><i><u>Note</u>:</i> only methods which can be safely invoked more
+    * than once, with the same outcome, should be declared idempotent.
+    * @param references The remote object references returned by the
+    * lookup method of this interface, typically all of them
+    * @param methodSetInterface The set <i>(or subset)</i> of public methods,
+    * static or instance, that the object references implement
+    * @param policy The load balancing policy: {@link #ROUND_ROBIN
+    * ROUND_ROBIN}, {@link #LEAST_OUTSTANDING LEAST_OUTSTANDING},
+    * {@link #LOWEST_LATENCY LOWEST_LATENCY}, {@link #CONSISTENT_HASH
+    * CONSISTENT_HASH}, or {@link #NEAREST NEAREST}
+    * @param idempotent The names of the methods of the method set interface
+    * which may be hedged, it can be null
+    * @return An object implementing the method set interface provided.
+    * @throws IllegalArgumentException If no references are provided, the
+    * policy is unknown, or an idempotent method is not in the method set
+    */
+   public Object proxy(Object references[], Class methodSetInterface,
+      int policy, String idempotent[]) {
+      if (references == null || references.length == 0)
+         throw new IllegalArgumentException("no references provided");
+      if (policy < ROUND_ROBIN || policy > NEAREST)
+         throw new IllegalArgumentException(policy + " is an invalid policy");
+      HashSet methods = null;
+      if (idempotent != null) {
+         Method declared[] = methodSetInterface.getMethods();
+         methods = new HashSet();
+         for (int i = 0; i < declared.length; i++)
+            methods.add(declared[i].getName());
+         for (int i = 0; i < idempotent.length; i++)
+            if (!methods.contains(idempotent[i]))
+               throw new IllegalArgumentException(
+                  idempotent[i] + " is not in the method set");
+         methods = new HashSet(Arrays.asList(idempotent));
+      }
+      Object canonical[] = new Object[references.length];
+      for (int i = 0; i < references.length; i++)
+         canonical[i] = items.canonical(references[i]);
+      return TransparentItemProxy.getItem(
+         new Balancer(canonical, items, latencies, breakers, policy,
+            methods),
+         new Class[] { methodSetInterface });
+   }
+   /**
+    * This method provides the network round trip time to a remote object
+    * reference, as most recently measured by this instance. The references
+    * in the federation are measured periodically, and on each lookup.
+    * @param reference A reference to a remote object returned by the
+    * lookup method of this interface
+    * @return The moving average round trip time in milliseconds, or -1 if
+    * it has not yet been measured
+    */
+   public long latency(Object reference) {
+      Long rtt = (Long)latencies.get(reference);
+      return rtt != null ? rtt.longValue() : -1;
+   }
+   /**
+    * This method publishes the health of each of the remote object
+    * references in the federation, as seen by this instance. Each reference
+    * is guarded by a circuit breaker; following consecutive network
+    * failures it opens, and invocations on the reference fail immediately,
+    * until a probe succeeds. References which fail persistently are removed
+    * from the federation.
+    * @return A table keyed by remote object reference, each value is an
+    * object array containing, in order: the breaker state string
+    * <tt>"closed", "open",</tt> or <tt>"half-open"</tt>; a Long count of
+    * invocations and probes let through; a Long count of network failures;
+    * a Long count of invocations rejected while open; and the Long round
+    * trip time in milliseconds, or -1 if not yet measured
+    */
+   public Hashtable health() {
+      Hashtable health = new Hashtable();
+      Object elements[] = items.toArray();
+      for (int i = 0; i < elements.length; i++) health.put(elements[i],
+         Breaker.get(breakers, elements[i]).health(latency(elements[i])));
+      return health;
+   }
    /**
     * This method is used to allow clients to pass references to its own
     * local objects, to other JVMs. Normally all arguments are passed by
@@ -343,7 +1364,7 @@ public final class Cajo implements Grail {
     */
    public void register(String hostname, int port) throws Exception {
       Object reg = Remote.getItem("//"+hostname+':'+port+"/registrar");
-      if (items.size() > 0) Remote.invoke(reg, "register", items);
+      if (items.size() > 0) Remote.invoke(reg, "register", items.copy());
       registrar.register((Vector)Remote.invoke(reg, "request", null));
    }
    /**
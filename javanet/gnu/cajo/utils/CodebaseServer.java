@@ -4,6 +4,19 @@ import java.io.*;
 import java.net.*;
 import gnu.cajo.invoke.Remote;
 import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.Vector;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
 /*
@@ -42,57 +55,495 @@ import java.text.SimpleDateFormat;
  * @author John Catherino
  */
 public final class CodebaseServer extends Thread {
-   private static final SimpleDateFormat formatter =
-      new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+   private static final SimpleDateFormat formatter = // per RFC 1123
+      new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+   static { formatter.setTimeZone(TimeZone.getTimeZone("GMT")); }
+   private static final int KEEPALIVE = 15000; // idle connection timeout, ms
+   private static final int GZIPPED = 0x800000; // largest file to compress
+   private static final int CHUNK = 0x10000; // most sent per write, bytes
+   private static final int POLL = 2000; // codebase index refresh, ms
+   private static final int // codebase index limits:
+      INDEXED = 0x1000, DEPTH = 16, // files, and directory levels
+      CACHED = 0x10000, MEMORY = 0x1000000, // in memory, per file, and all
+      RESOURCES = 0x100; // from the class path, least recent evicted
+   private static final int RING = 0x400; // access records buffered
+   private static final int BUCKETS = 20; // latency histogram size
+   private static final String EOL = System.getProperty("line.separator");
+   private static final int // request limits:
+      LINE = 0x1000, HEADERS = 0x2000, FIELDS = 64; // in bytes, and count
    private static final byte[] // http headers:
-      bye = ("HTTP/1.0 404 Not Found\r\n" // unsupported request
-         + "Content-type: text/html\r\n"
-         + "Server: cajo/CodebaseServer\r\n"
-         + "Connection: close\r\n\r\n"
-         + "<html><head><title>404: URL Not Found</title></head><body>"
+      err = ("<html><head><title>404: URL Not Found</title></head><body>"
          + "<h1>404 - Not Found</h1>"
          + "The requested resource is not available from this server.<br><br>"
          + "<hr><i>gnu.cajo.utils.CodebaseServer - The cajo project: "
          + "<a href=https://cajo.dev.java.net>https://cajo.dev.java.net</a>."
          + "</i></body></html>").getBytes(),
-      apl = ("HTTP/1.0 200 OK\r\n"
+      bye = ("HTTP/1.1 404 Not Found\r\n" // unsupported request
          + "Content-type: text/html\r\n"
          + "Cache-control: no-cache\r\n"
-         + "Cache-control: no-store\r\n"
-         + "Server: cajo/CodebaseServer\r\n"
-         + "Last-Modified: " + formatter.format(new Date()) + "\r\n"
-         + "Connection: close\r\n\r\n").getBytes(), // for applets
-      jws = ("HTTP/1.0 200 OK\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      malformed = ("HTTP/1.1 400 Bad Request\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      longUri = ("HTTP/1.1 414 URI Too Long\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      largeHdr = ("HTTP/1.1 431 Request Header Fields Too Large\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      busy = ("HTTP/1.1 503 Service Unavailable\r\n"
+         + "Retry-After: 1\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      unmod = ("HTTP/1.1 304 Not Modified\r\n" // client copy is current
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      apl = ("HTTP/1.1 200 OK\r\n"
+         + "Content-type: text/html\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(), // for applets
+      jws = ("HTTP/1.1 200 OK\r\n"
          + "Content-type: application/x-java-jnlp-file\r\n"
-         + "Cache-control: no-cache\r\n"
-         + "Cache-control: no-store\r\n"
-         + "Server: cajo/CodebaseServer\r\n"
-         + "Last-Modified: " + formatter.format(new Date()) + "\r\n"
-         + "Connection: close\r\n\r\n").getBytes(), // for WebStart
-      jarHdr = ("HTTP/1.0 200 OK\r\n" // for jar files
-         + "Content-type: application/x-java-archive\r\n"
-         + "Cache-control: no-cache\r\n"
-         + "Cache-control: no-store\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(), // for WebStart
+      bad = ("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"
          + "Server: cajo/CodebaseServer\r\n").getBytes(),
-      classHdr = ("HTTP/1.0 200 OK\r\n" // for class files
-         + "Content-type: application/x-java-vm\r\n"
-         + "Cache-control: no-cache\r\n"
-         + "Cache-control: no-store\r\n"
+      ok   = "HTTP/1.1 200 OK\r\n".getBytes(), // for files:
+      part = "HTTP/1.1 206 Partial Content\r\n".getBytes(),
+      jarHdr = ("Content-type: application/x-java-archive\r\n"
          + "Server: cajo/CodebaseServer\r\n").getBytes(),
-      imgHdr = ("HTTP/1.0 200 OK\r\n" // for image files
-         + "Content-type: image/jpeg\r\n"
-         + "Cache-control: no-cache\r\n"
-         + "Cache-control: no-store\r\n"
+      classHdr = ("Content-type: application/x-java-vm\r\n"
+         + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      imgHdr = ("Content-type: image/jpeg\r\n"
          + "Server: cajo/CodebaseServer\r\n").getBytes(),
+      vary = ("Vary: Accept-Encoding\r\n"
+         + "Accept-Ranges: bytes\r\n").getBytes(),
+      zip  = "Content-Encoding: gzip\r\n".getBytes(),
+      keep  = "Connection: keep-alive\r\n\r\n".getBytes(),
+      close = "Connection: close\r\n\r\n".getBytes(),
 
       end = ( // http footers:
          "PLUGINSPAGE=\"http://java.sun.com/j2se/1.5.0/download.html\">\r\n"
          + "</EMBED></COMMENT></OBJECT></CENTER></BODY></HTML>")
          .getBytes(),
       out = ("  </application-desc>\r\n" + "</jnlp>").getBytes();
-   private final byte[] top, mid, tip, xml;
+   private static final int // page template variables:
+      HOST = 0, CLIENT = 1, LOCAL = 2, PROXY = 3, NAME = 4, SERVER = 5;
+   private final Template applet, webstart;
    private final ServerSocket ss;
-   private PrintStream log;
+   private final long created = System.currentTimeMillis(); // page templates
+   private final String lastModified = date(created);
+   private final Hashtable entries = new Hashtable(); // validators, contents
+   private final Hashtable maxAges = new Hashtable(); // by file extension
+   private final Hashtable latencies = new Hashtable(); // by resource type
+   private volatile PrintStream log;
+   private volatile Access access;
+   private volatile boolean complete; // every codebase file is indexed
+   private volatile String roots[] = {}; // the codebase locations indexed
+   private Hashtable dirs = new Hashtable(); // listings, by path: indexer's
+   private final String loc; // the URL of this server
+   private final Vector connections = new Vector(); // being served
+   private final Hashtable downloads = new Hashtable(); // by client address
+   private int active; // downloads in progress
+   private volatile int readTimeout = 15000, writeTimeout = 30000, bandwidth;
+   private volatile int maxConnections = 256, maxDownloads, maxPerClient;
+   private final Budget budget = new Budget(); // of the bytes in memory
+   private final Vector resources = new Vector(); // least recently used first
+   private static final class Budget { // the bytes held, of MEMORY
+      private long held;
+      synchronized boolean charge(long bytes) { // false if it won't fit
+         if (held + bytes > MEMORY) return false;
+         held += bytes;
+         return true;
+      }
+      synchronized void refund(long bytes) { held -= bytes; }
+   }
+   private static final class Entry { // a resource version, and its validators
+      final File file; // the source, if from the filesystem
+      final URL url; // the source, if from the class path
+      final long modified, length;
+      final String etag, gzipTag, lastModified; // formatted
+      final byte bytes[]; // the contents, if held in memory
+      private byte gzip[];
+      private boolean packed, dropped;
+      Entry(File file, URL url, long modified, long length, long crc,
+         byte bytes[]) {
+         this.file     = file;
+         this.url      = url;
+         this.modified = modified;
+         this.length   = length;
+         this.bytes    = bytes;
+         etag    = tag(crc, length, "");
+         gzipTag = tag(crc, length, "-gz");
+         lastModified = date(modified);
+      }
+      synchronized byte[] gzip(byte msg[], Budget budget) { // once, if worth
+         if (packed || dropped || length > GZIPPED) return gzip;
+         if (!budget.charge(length)) return null; // no room, send identity
+         long held = 0; // of the bytes charged, the rest is refunded
+         try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream gos = new GZIPOutputStream(baos);
+            if (bytes != null) gos.write(bytes);
+            else {
+               InputStream is = file != null ?
+                  new FileInputStream(file) : url.openStream();
+               try {
+                  for (int i = is.read(msg); i != -1; i = is.read(msg))
+                     gos.write(msg, 0, i);
+               } finally { is.close(); }
+               if (file != null && file.lastModified() != modified)
+                  return null; // changed
+            }
+            gos.close();
+            packed = true; // else it is tried again, on the next request
+            if (baos.size() < length - length / 10) { // saves 10% or more
+               gzip = baos.toByteArray();
+               held = gzip.length;
+            }
+         } catch (IOException x) {} // the identity version will be sent
+         finally { budget.refund(length - held); }
+         return gzip;
+      }
+      synchronized long drop() { // no longer indexed, returns bytes held
+         dropped = true;
+         return (bytes != null ? bytes.length : 0) +
+            (gzip != null ? gzip.length : 0);
+      }
+   }
+   private static final class Template { // a page, compiled once
+      private final ByteBuffer parts[]; // the text between the variables
+      private final int slots[]; // the variable following each part
+      final long crc; // of all of the text
+      Template(Object pieces[]) { // of String, byte[], or variable Integer
+         Vector parts = new Vector(), slots = new Vector();
+         ByteArrayOutputStream text = new ByteArrayOutputStream();
+         CRC32 crc = new CRC32();
+         for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] instanceof Integer) {
+               parts.addElement(text.toByteArray());
+               slots.addElement(pieces[i]);
+               text.reset();
+            } else {
+               byte bytes[] = pieces[i] instanceof String ?
+                  ((String)pieces[i]).getBytes() : (byte[])pieces[i];
+               text.write(bytes, 0, bytes.length);
+               crc.update(bytes);
+            }
+         }
+         parts.addElement(text.toByteArray());
+         this.parts = new ByteBuffer[parts.size()];
+         for (int i = 0; i < this.parts.length; i++) { // shared, read only
+            byte bytes[] = (byte[])parts.elementAt(i);
+            this.parts[i] = ByteBuffer.allocateDirect(bytes.length);
+            this.parts[i].put(bytes).flip();
+         }
+         this.slots = new int[slots.size()];
+         for (int i = 0; i < this.slots.length; i++)
+            this.slots[i] = ((Integer)slots.elementAt(i)).intValue();
+         this.crc = crc.getValue();
+      }
+      ByteBuffer[] render(String values[], CRC32 crc) { // header unset
+         ByteBuffer page[] = new ByteBuffer[parts.length + slots.length + 1];
+         for (int i = 0; i < parts.length; i++)
+            page[i * 2 + 1] = parts[i].duplicate();
+         for (int i = 0; i < slots.length; i++) {
+            String value = values[slots[i]];
+            byte bytes[] = (value != null ? value : "null").getBytes();
+            crc.update(bytes);
+            page[i * 2 + 2] = ByteBuffer.wrap(bytes);
+         }
+         return page;
+      }
+   }
+   private static final class Request { // the parts of interest
+      String itemName, match, range, ifRange;
+      long since = -1;
+      boolean head, gzip, alive;
+      String type = "other"; // the response:
+      int status;
+      long sent;
+   }
+   private static final class Record { // an access log entry
+      String client, path;
+      int status;
+      long time, bytes, duration;
+   }
+   private final class Access implements Runnable { // an asynchronous log
+      private final Record ring[] = new Record[RING];
+      private int head, count;
+      private long dropped, reported;
+      Access() { for (int i = 0; i < RING; i++) ring[i] = new Record(); }
+      synchronized void record(String client, Request rq, long time,
+         long duration) { // never waits for the log to be written
+         if (count == RING) {
+            dropped++;
+            return;
+         }
+         Record r = ring[(head + count++) % RING];
+         r.client   = client;
+         r.path     = rq.itemName;
+         r.status   = rq.status;
+         r.time     = time;
+         r.bytes    = rq.sent;
+         r.duration = duration;
+         if (count == 1) notify();
+      }
+      synchronized long getDropped() { return dropped; }
+      public void run() {
+         Record batch[] = new Record[RING];
+         for (int i = 0; i < RING; i++) batch[i] = new Record();
+         StringBuffer sb = new StringBuffer();
+         String date = null;
+         try {
+            for (long second = -1;;) {
+               int n;
+               long lost;
+               synchronized(this) { // take all waiting, leave empty records
+                  while (count == 0) wait();
+                  for (n = 0; n < count; n++) {
+                     int i = (head + n) % RING;
+                     Record r = ring[i];
+                     ring[i] = batch[n];
+                     batch[n] = r;
+                  }
+                  head = (head + n) % RING;
+                  count = 0;
+                  lost = dropped - reported;
+                  reported = dropped;
+               }
+               sb.setLength(0);
+               for (int i = 0; i < n; i++) {
+                  Record r = batch[i];
+                  if (r.time / 1000 != second) {
+                     second = r.time / 1000;
+                     date = date(r.time);
+                  }
+                  sb.append('[').append(date).append("] ").append(r.client);
+                  sb.append(' ').append(r.status).append(' ').append(r.bytes);
+                  sb.append(' ').append(r.duration).append("ms ");
+                  sb.append(r.path != null ? r.path : "-").append(EOL);
+               }
+               if (lost > 0) sb.append("-- ").append(lost).
+                  append(" access records dropped").append(EOL);
+               PrintStream log = CodebaseServer.this.log;
+               log.print(sb.toString());
+               log.flush();
+            }
+         } catch (InterruptedException x) {}
+      }
+   }
+   private final class Connection extends OutputStream { // to one client
+      final Socket socket;
+      final String client; // address
+      private final OutputStream out;
+      private final SocketChannel channel;
+      volatile long deadline; // of the current read, or write, or zero
+      private long next; // the earliest time more may be sent, if paced
+      Connection(Socket socket) throws IOException {
+         this.socket = socket;
+         client  = socket.getInetAddress().getHostAddress();
+         out     = socket.getOutputStream();
+         channel = socket.getChannel();
+      }
+      void expect() { // a request is arriving
+         if (deadline == 0)
+            deadline = System.currentTimeMillis() + readTimeout;
+      }
+      private int chunk() { // about a quarter second's worth, if paced
+         int rate = bandwidth;
+         return rate <= 0 ? CHUNK : Math.max(0x400, Math.min(CHUNK, rate / 4));
+      }
+      private void pace(long n) throws IOException { // then, arm watchdog
+         int rate = bandwidth;
+         if (rate > 0) {
+            long now = System.currentTimeMillis();
+            if (next < now) next = now; // idle time earns no credit
+            long wait = next - now;
+            next += n * 1000 / rate;
+            if (wait > 0) try { Thread.sleep(wait); }
+            catch (InterruptedException x) {
+               throw new InterruptedIOException("Server stopped");
+            }
+         }
+         deadline = System.currentTimeMillis() + writeTimeout;
+      }
+      public void write(int b) throws IOException {
+         write(new byte[] { (byte)b }, 0, 1);
+      }
+      public void write(byte b[], int off, int len) throws IOException {
+         for (int n; len > 0; off += n, len -= n) {
+            n = Math.min(len, chunk());
+            pace(n);
+            out.write(b, off, n);
+         }
+         deadline = 0;
+      }
+      public void flush() throws IOException { out.flush(); }
+      void write(ByteBuffer buffers[]) throws IOException { // gathering
+         long left = 0;
+         for (int i = 0; i < buffers.length; i++)
+            left += buffers[i].remaining();
+         if (channel == null) { // not likely
+            for (int i = 0; i < buffers.length; i++) {
+               byte bytes[] = new byte[buffers[i].remaining()];
+               buffers[i].get(bytes);
+               write(bytes, 0, bytes.length);
+            }
+            return;
+         }
+         pace(left); // pages are small, send them whole
+         while (left > 0) left -= channel.write(buffers);
+         deadline = 0;
+      }
+      void write(InputStream is, long from, long count, byte msg[])
+         throws IOException { // part of a stream
+         for (long n; from > 0; from -= n)
+            if ((n = is.skip(from)) <= 0) {
+               if (is.read() == -1) throw new EOFException("Truncated");
+               n = 1;
+            }
+         for (int n; count > 0; count -= n) {
+            n = is.read(msg, 0, (int)Math.min(count, msg.length));
+            if (n == -1) throw new EOFException("Truncated");
+            write(msg, 0, n);
+         }
+      }
+      void write(byte bytes[], long from, long count, FileChannel fc,
+         byte msg[]) throws IOException { // part of a file, or its bytes
+         if (bytes != null && channel == null) // not likely
+            write(bytes, (int)from, (int)count);
+         else if (bytes != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, (int)from, 0);
+            for (int i = (int)from, to = (int)(from + count); i < to;) {
+               int n = Math.min(to - i, chunk());
+               pace(n);
+               buffer.limit(i += n);
+               while (buffer.hasRemaining()) channel.write(buffer);
+            }
+         } else for (long i = from, to = from + count; i < to;) {
+            long n = Math.min(to - i, chunk());
+            if (channel == null) { // not likely
+               ByteBuffer buffer =
+                  ByteBuffer.wrap(msg, 0, (int)Math.min(n, msg.length));
+               n = fc.read(buffer, i);
+               if (n > 0) write(msg, 0, (int)n);
+            } else { // let the OS send the file, without copying
+               pace(n);
+               n = fc.transferTo(i, n, channel);
+            }
+            if (n <= 0) throw new EOFException("File truncated");
+            i += n;
+         }
+         deadline = 0;
+      }
+   }
+   private static final class Parser { // incremental, over one connection
+      private final InputStream is;
+      private final Connection c;
+      private final byte buf[] = new byte[HEADERS];
+      private int pos, lim; // the bytes received, but not yet parsed
+      Parser(InputStream is, Connection c) {
+         this.is = is;
+         this.c  = c;
+      }
+      boolean idle() throws IOException { // no pipelined request waiting
+         return pos == lim && is.available() == 0;
+      }
+      private int line(int max) throws IOException {
+         for (int i = pos;; i++) { // index of the next LF, -1 if closed
+            if (i - pos > max) return -2; // or -2 if the line is too long
+            if (i == lim) { // this segment is exhausted, receive another
+               if (lim == buf.length) { // make room
+                  System.arraycopy(buf, pos, buf, 0, lim - pos);
+                  i -= pos;
+                  lim -= pos;
+                  pos = 0;
+                  if (lim == buf.length) return -2;
+               }
+               int n = is.read(buf, lim, buf.length - lim);
+               if (n == -1) return -1;
+               c.expect();
+               lim += n;
+            }
+            if (buf[i] == '\n') return i;
+         }
+      }
+      private int strip(int end) { // ignore the CR of a CRLF
+         return end > pos && buf[end - 1] == '\r' ? end - 1 : end;
+      }
+      private int find(int b, int from, int to) {
+         while (from < to && buf[from] != b) from++;
+         return from < to ? from : -1;
+      }
+      private boolean is(int from, int to, String name) { // header name
+         if (to - from != name.length()) return false;
+         for (int i = 0; i < name.length(); i++)
+            if (Character.toLowerCase((char)buf[from + i]) != name.charAt(i))
+               return false;
+         return true;
+      }
+      private String value(int from, int to) { // without surrounding space
+         while (from < to && (buf[from] == ' ' || buf[from] == '\t')) from++;
+         while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) to--;
+         return new String(buf, from, to - from);
+      }
+      int parse(Request rq) throws IOException { // 0 if closed, else status
+         if (pos < lim) c.expect(); // pipelined
+         int end = line(LINE);
+         for (int i = 0; end >= 0 && strip(end) == pos; i++) { // stray CRLFs
+            if (i == 4) return 400;
+            pos = end + 1;
+            end = line(LINE);
+         }
+         if (end == -1) return 0;
+         if (end == -2) return 414;
+         int stop = strip(end), a = find(' ', pos, stop);
+         int b = a == -1 ? -1 : find(' ', a + 1, stop);
+         if (a <= pos || b == a + 1 || a + 1 == stop) return 400;
+         boolean http11 = false; // a request without a version is HTTP/0.9
+         if (b != -1) {
+            if (stop - b != 9 || !is(b + 1, stop - 1, "http/1.") ||
+               buf[stop - 1] < '0' || buf[stop - 1] > '9') return 400;
+            http11 = buf[stop - 1] != '0';
+         } else b = stop;
+         String method = new String(buf, pos, a - pos);
+         rq.itemName = buf[a + 1] == '/' ?
+            normal(new String(buf, a + 1, b - a - 1)) : null;
+         rq.head = method.equals("HEAD");
+         boolean body = !rq.head && !method.equals("GET");
+         String connection = null;
+         pos = end + 1;
+         if (b != stop) for (int size = 0, fields = 0;;) { // the headers
+            end = line(HEADERS - size);
+            if (end == -1) return 0;
+            if (end == -2) return 431;
+            size += end + 1 - pos;
+            stop = strip(end);
+            if (stop == pos) break; // end of the headers
+            if (++fields > FIELDS) return 431;
+            int colon = find(':', pos, stop);
+            if (colon <= pos || find(' ', pos, colon) != -1 ||
+               find('\t', pos, colon) != -1) return 400; // not a token
+            if (is(pos, colon, "connection"))
+               connection = value(colon + 1, stop).toLowerCase();
+            else if (is(pos, colon, "if-none-match"))
+               rq.match = value(colon + 1, stop);
+            else if (is(pos, colon, "if-modified-since"))
+               rq.since = since(value(colon + 1, stop));
+            else if (is(pos, colon, "accept-encoding"))
+               rq.gzip = gzip(value(colon + 1, stop));
+            else if (is(pos, colon, "range"))
+               rq.range = value(colon + 1, stop);
+            else if (is(pos, colon, "if-range"))
+               rq.ifRange = value(colon + 1, stop);
+            else if (is(pos, colon, "transfer-encoding") ||
+               is(pos, colon, "content-length") &&
+               !value(colon + 1, stop).equals("0")) body = true;
+            pos = end + 1;
+         }
+         pos = end + 1;
+         rq.alive = !body && (http11 ? connection == null ||
+            connection.indexOf("close") == -1 : connection != null &&
+            connection.indexOf("keep-alive") != -1);
+         if (!rq.head && !method.equals("GET"))
+            rq.itemName = null; // only GET and HEAD are supported
+         return 200;
+      }
+   }
    /**
     * This is the inbound ServerSocket port number providing both the HTTP
     * client tag and codebase jar service. If the server is behind a firewall,
@@ -170,7 +621,7 @@ public final class CodebaseServer extends Thread {
             base.append(jars[i]);
          }
       } else base.append("client.jar");
-      top = ("<HTML><HEAD><TITLE>" // create instance specific response data:
+      byte top[] = ("<HTML><HEAD><TITLE>" // instance specific response data:
          + title
          + "</TITLE>\r\n"
          + "<META NAME=\"description\" content=\"Graphical cajo proxy client\">\r\n"
@@ -186,17 +637,19 @@ public final class CodebaseServer extends Thread {
          + "<PARAM NAME=\"type\" VALUE=\"application/x-java-applet;version=1.5\">\r\n"
          + "<PARAM NAME=\"code\" VALUE=\"" + temp + "\">\r\n"
          ).getBytes();
-      mid = ("<COMMENT><EMBED type=\"application/x-java-applet;version=1.5\"\r\n"
+      byte mid[] = ("<COMMENT><EMBED type=\"application/x-java-applet;version=1.5\"\r\n"
          + "ARCHIVE=\"" + base.toString() + "\"\r\n"
          + "CODE=\"" + temp + "\"\r\n" + "WIDTH=\"100%\" HEIGHT=\"100%\"\r\n"
          + "DRAGGABLE=\"true\"\r\n"
          ).getBytes();
-      ss = Remote.getDefaultServerHost() == null
-         ? new ServerSocket(port)
-         : new ServerSocket(port, 50, InetAddress.getByName(Remote.getDefaultServerHost()));
+      ss = ServerSocketChannel.open().socket(); // accepts channel sockets
+      ss.bind(Remote.getDefaultServerHost() == null
+         ? new InetSocketAddress(port)
+         : new InetSocketAddress(InetAddress.getByName(
+            Remote.getDefaultServerHost()), port), 50);
       serverPort = port == 0 ? ss.getLocalPort() : port;
       CodebaseServer.port = serverPort; // legacy
-      tip = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
+      byte tip[] = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
          + "<jnlp spec=\"1.5+\"\r\n" + "  codebase=" + "\"http://"
          + (Remote.getDefaultClientHost() != null
          ? Remote.getDefaultClientHost()
@@ -221,8 +674,30 @@ public final class CodebaseServer extends Thread {
       base.append("  <application-desc main-class=\"");
       base.append(client);
       base.append("\">\r\n");
-      xml = base.toString().getBytes();
-      String loc = "http://" + (Remote.getDefaultClientHost() != null ?
+      byte xml[] = base.toString().getBytes();
+      applet = new Template(new Object[] { top, // used by Exploder:
+         "<PARAM NAME=\"clientHost\" VALUE=\"", new Integer(HOST),
+         "\">\r\n<PARAM NAME=\"clientPort\" VALUE=\"", new Integer(CLIENT),
+         "\">\r\n<PARAM NAME=\"localPort\"  VALUE=\"", new Integer(LOCAL),
+         "\">\r\n<PARAM NAME=\"proxyPort\"  VALUE=\"", new Integer(PROXY),
+         "\">\r\n<PARAM NAME=\"proxyName\"  VALUE=\"", new Integer(NAME),
+         "\">\r\n", mid, // used by Navigator and Appletviewer:
+         "clientHost=\"", new Integer(HOST),
+         "\"\r\nclientPort=\"", new Integer(CLIENT),
+         "\"\r\nlocalPort=\"", new Integer(LOCAL),
+         "\"\r\nproxyPort=\"", new Integer(PROXY),
+         "\"\r\nproxyName=\"", new Integer(NAME), "\"\r\n", end
+      });
+      webstart = new Template(new Object[] { tip,
+         "  href=\"", new Integer(CLIENT), ":", new Integer(LOCAL), "-",
+         new Integer(NAME), "!\">\r\n", xml,
+         "    <argument>//", new Integer(SERVER), ":", new Integer(PROXY),
+         "/", new Integer(NAME), "</argument>\r\n    <argument>",
+         new Integer(CLIENT), "</argument>\r\n    <argument>",
+         new Integer(HOST), "</argument>\r\n    <argument>",
+         new Integer(LOCAL), "</argument>\r\n", out
+      });
+      loc = "http://" + (Remote.getDefaultClientHost() != null ?
          Remote.getDefaultClientHost() :
             InetAddress.getLocalHost().getHostAddress())
                + ':' + CodebaseServer.port + '/';
@@ -239,6 +714,16 @@ public final class CodebaseServer extends Thread {
          base.append(System.getProperty("java.rmi.server.codebase"));
       }
       System.setProperty("java.rmi.server.codebase", base.toString());
+      Thread indexer = new Thread(new Runnable() {
+         public void run() { index(); }
+      });
+      indexer.setDaemon(true);
+      indexer.start();
+      Thread watchdog = new Thread(new Runnable() {
+         public void run() { watch(); }
+      });
+      watchdog.setDaemon(true);
+      watchdog.start();
       setDaemon(true); // don't stay awake just because of us
       start(); // ready to accept clients
    }
@@ -276,15 +761,124 @@ public final class CodebaseServer extends Thread {
    /**
     * This method can be used to log the client requests of the Codebase
     * server. The log can range from System.out, to a network socket
-    * OutputStream.<p>
+    * OutputStream. Each request is written on one line, as its time, client
+    * address, response status, bytes of content sent, milliseconds taken,
+    * and the requested path, e.g.:<p><code>
+    * [Mon, 19 Oct 2026 00:41:08 GMT] 10.0.0.7 200 705 0ms /main!</code><p>
+    * The entries are written in batches, by a thread of their own.<p>
     * <i><u>Note</u>:</i> Only one log stream can be assigned to the
     * CodebaseServer at any given time.
     * @param log The OutputStream to record the client requests. If this
     * argument is null, no change will take place.
     */
    public void setLog(OutputStream log) {
-      if (log != null) this.log = log instanceof PrintStream ?
+      if (log == null) return;
+      this.log = log instanceof PrintStream ?
          (PrintStream)log : new PrintStream(log);
+      synchronized(latencies) {
+         if (access != null) return;
+         access = new Access();
+         Thread writer = new Thread(access);
+         writer.setDaemon(true);
+         writer.start();
+      }
+   }
+   /**
+    * This method reports the number of client requests omitted from the
+    * log. Entries are buffered, and written by a separate thread, so that a
+    * slow log never delays serving; should the log fall over a thousand
+    * entries behind, further entries are discarded, and counted here. The
+    * log itself notes each such gap.
+    * @return The count of entries dropped, since the log was first set
+    */
+   public long getDropped() {
+      Access access = this.access;
+      return access != null ? access.getDropped() : 0;
+   }
+   /**
+    * This method reports the distribution of the time taken to serve client
+    * requests, by type of resource. The types are the same as for
+    * {@link #setMaxAge setMaxAge}, plus <tt>other</tt> for requests
+    * matching no resource. The histograms are kept whether or not a log is
+    * set.
+    * @return A table, keyed by type, of <tt>long</tt> arrays; element zero
+    * counts requests served in under one millisecond, element <i>n</i> those
+    * taking at least 2<sup><i>n</i>-1</sup>, but under 2<sup><i>n</i></sup>
+    * milliseconds, and the final element all taking longer. The arrays are
+    * copies, and will not change.
+    */
+   public Hashtable getLatencies() {
+      Hashtable copy = new Hashtable();
+      synchronized(latencies) {
+         for (Enumeration e = latencies.keys(); e.hasMoreElements();) {
+            Object type = e.nextElement();
+            long histogram[] = (long[])latencies.get(type);
+            synchronized(histogram) { copy.put(type, histogram.clone()); }
+         }
+      }
+      return copy;
+   }
+   /**
+    * This method sets how long a client may use its copy of a type of
+    * resource, before asking the server whether it has changed. By default,
+    * clients must ask every time; an unchanged resource is then answered with
+    * a brief <i>304 Not Modified</i> rather than its contents. Extending the
+    * time for stable files, such as library jars, saves the client even the
+    * round trip.
+    * @param type The file extension of the resource, e.g. <tt>jar</tt>,
+    * <tt>class</tt>, or <tt>gif</tt>; or <tt>html</tt> for the applet page,
+    * and <tt>jnlp</tt> for the WebStart descriptor
+    * @param seconds The time for which a client copy may be used without
+    * checking; zero, or less, means it must always be checked
+    */
+   public void setMaxAge(String type, long seconds) {
+      if (seconds > 0) maxAges.put(type, new Long(seconds));
+      else maxAges.remove(type);
+   }
+   /**
+    * This method sets how long the server will wait on a stalled client,
+    * before closing its connection. Idle connections, between requests, are
+    * closed after fifteen seconds regardless.
+    * @param read The time, in milliseconds, in which a request must arrive
+    * in full, once it has begun; by default fifteen seconds
+    * @param write The time, in milliseconds, in which the client must accept
+    * each block of up to 64k of a response; by default thirty seconds
+    * @throws IllegalArgumentException If either time is zero, or less
+    */
+   public void setTimeouts(int read, int write) {
+      if (read <= 0 || write <= 0)
+         throw new IllegalArgumentException("Timeouts must be positive");
+      readTimeout  = read;
+      writeTimeout = write;
+   }
+   /**
+    * This method bounds the load the server will accept, such as when many
+    * clients start at once. Connections over the limit are refused, and
+    * downloads over either limit are declined, both with a <i>503 Service
+    * Unavailable</i>, asking the client to retry in a second. Only the
+    * sending of files counts as a download; pages, and <i>304 Not
+    * Modified</i> replies, are always served.
+    * @param connections The most client connections open at once; by default
+    * 256
+    * @param downloads The most files being sent at once, to all clients; by
+    * default unlimited
+    * @param perClient The most files being sent at once, to any one client
+    * address; by default unlimited
+    * <br>For any of these, zero, or less, means unlimited.
+    */
+   public void setLimits(int connections, int downloads, int perClient) {
+      maxConnections = connections;
+      maxDownloads   = downloads;
+      maxPerClient   = perClient;
+   }
+   /**
+    * This method limits the rate at which each connection is sent data, so
+    * that a few large downloads cannot take all of the server's bandwidth.
+    * @param bytesPerSecond The most bytes sent per second, on each
+    * connection; zero, or less, means unlimited, which is the default
+    */
+   public void setBandwidth(int bytesPerSecond) {
+      bandwidth = bytesPerSecond;
    }
    /**
     * The server thread method, it will send the proxy codebase, and it will
@@ -324,126 +918,587 @@ public final class CodebaseServer extends Thread {
     * as it is unique to the VM in which the CodebaseServer is running.<p>
     * As a safety precaution, the server will send any requested jar or class
     * file in or below its working directory <i>except</i> the jar file of the
-    * server itself. Typically people do not want to give this file out.
+    * server itself. Typically people do not want to give this file out.<p>
+    * Each client connection is served by its own thread, so a slow client
+    * does not delay any others. Connections are kept alive between requests,
+    * per HTTP/1.1, unless the client asks otherwise; requests sent before
+    * their predecessors have been answered (pipelined) are answered in order.
+    * An idle connection is closed after fifteen seconds. Requests are parsed
+    * as their bytes arrive, however the network divides them; a malformed
+    * request is answered <i>400</i>, a request line over 4k <i>414</i>, and
+    * headers over 8k, or 64 fields, <i>431</i>; the connection is then closed.
+    * <p>
+    * Every response carries an ETag, computed from its contents, and a
+    * Last-Modified date; conditional requests for unchanged resources are
+    * answered with <i>304 Not Modified</i>, and no body. Files are sent gzip
+    * compressed to clients accepting it, when that makes them at least ten
+    * percent smaller; each version is compressed only once, and kept while
+    * it fits in memory, as below, otherwise the identity version is sent.
+    * A single byte range of a file may be requested, to resume an
+    * interrupted download.<p>
+    * The servable files of the codebase, i.e. the jars of this server named
+    * in the <tt>java.rmi.server.codebase</tt> property, or the files below
+    * the class directories it names, are indexed in memory, with their sizes
+    * and hashes, and the contents of the smaller ones. The index is
+    * refreshed every two seconds, relisting only the directories modified
+    * since, so replaced jars are picked up without a restart. Requests for
+    * files held in memory are answered from the index alone; those for the
+    * larger files, which are read from disk, check that their modification
+    * time is unchanged since the index was refreshed. Other servable files
+    * below the working directory are looked up on request. Resources
+    * requested from the server's class path are indexed likewise, up to
+    * the 256 most recently used. The contents held in memory, of files up
+    * to 64k, and of their compressed versions, are limited to 16MB in all;
+    * other files are streamed. Path names are normalised, and those
+    * containing <tt>..</tt> are refused.
     */
    public void run() {
       try {
-         byte msg[] = new byte[0x1000]; // allocate a 4k data transfer buffer
          while (!isInterrupted()) {
             Socket s = ss.accept();
-            try {
-               InputStream is = s.getInputStream();
-               OutputStream os = 
-                  new BufferedOutputStream(s.getOutputStream(), 0x8000);
-               int ix = is.read(msg);
-               String itemName = null;
-               scan : for (int i = 0; i < ix; i++) { // scan client request
-                  if (msg[i] == '/') {
-                     for (int j = i + 1; j < msg.length; j++) {
-                        if (msg[j] == ' ') {
-                           itemName = new String(msg, i, j - i);
-                           break scan;
-                        }
-                     }
-                  }
-               }
-               String clientHost = s.getInetAddress().getHostAddress();
-               if (log != null)
-                  log.println("Client " + clientHost + " request: " + itemName);
-               if (itemName == null) os.write(bye); // invalid request
-               else if (itemName.indexOf('.') == -1 // gui request
-                  && itemName.indexOf('/', 1) == -1) {
-                  try { // URL request: parse arguments
-                     int ia = itemName.indexOf(':') != -1
-                        ? itemName.indexOf(':') : 0;
-                     int ib = itemName.indexOf('-') != -1
-                        ? itemName.indexOf('-') : ia;
-                     int ic = itemName.indexOf('!') != -1
-                        ? itemName.indexOf('!') : itemName.length();
-                     String clientPort = ia > 1
-                        ? itemName.substring(1, ia) : "0";
-                     String localPort = ib > ++ia
-                        ? itemName.substring(ia, ib) : "0";
-                     String proxyName = ic > ++ib
-                        ? itemName.substring(ib, ic) : "main";
-                     ItemServer.lookup(proxyName); // is object bound?
-                     int proxyPort = Remote.getDefaultClientPort();
-                     if (itemName.indexOf('!') == -1) { // Applet request
-                        byte iex[] = ( // used by Exploder:
-                           "<PARAM NAME=\"clientHost\" VALUE=\"" + clientHost
-                           + "\">\r\n"
-                           + "<PARAM NAME=\"clientPort\" VALUE=\""
-                           + clientPort + "\">\r\n"
-                           + "<PARAM NAME=\"localPort\"  VALUE=\""
-                           + localPort + "\">\r\n"
-                           + "<PARAM NAME=\"proxyPort\"  VALUE=\""
-                           + proxyPort + "\">\r\n"
-                           + "<PARAM NAME=\"proxyName\"  VALUE=\""
-                           + proxyName + "\">\r\n").getBytes();
-                        byte nav[] = ( // used by Navigator and Appletviewer:
-                           "clientHost=\"" + clientHost + "\"\r\n"
-                           + "clientPort=\"" + clientPort + "\"\r\n"
-                           + "localPort=\"" + localPort + "\"\r\n"
-                           + "proxyPort=\"" + proxyPort + "\"\r\n"
-                           + "proxyName=\"" + proxyName + "\"\r\n").getBytes();
-                        os.write(apl);
-                        os.write(top);
-                        os.write(iex); // return client specific applet page
-                        os.write(mid);
-                        os.write(nav);
-                        os.write(end);
-                     } else { // WebStart request
-                        byte obj[] = ("  href=\"" + clientPort + ':'
-                           + localPort + '-' + proxyName + "!\">\r\n").getBytes();
-                        byte arg[] = ("    <argument>//"
-                           + Remote.getDefaultClientHost() + ':' + proxyPort + '/'
-                           + proxyName + "</argument>\r\n"
-                           + "    <argument>" + clientPort
-                           + "</argument>\r\n" + "    <argument>"
-                           + clientHost + "</argument>\r\n"
-                           + "    <argument>" + localPort + "</argument>\r\n")
-                           .getBytes();
-                        os.write(jws);
-                        os.write(tip);
-                        os.write(obj); // return client specific jnlp document
-                        os.write(xml);
-                        os.write(arg);
-                        os.write(out);
-                     }
-                  } catch (Exception x) { os.write(bye); }
-               } else if (!itemName.endsWith("server.jar")) { // file request
-                  if (
-                     itemName.equals("/favicon.ico") ||
-                     itemName.endsWith(".jar")       ||
-                     itemName.endsWith(".class")     ||
-                     itemName.endsWith(".gif")       ||
-                     itemName.endsWith(".png")       ||
-                     itemName.endsWith(".jpg")       ||
-                     itemName.endsWith(".jpeg")
-                  ) try {
-                     InputStream ris = getClass().getResourceAsStream(itemName);
-                     if (ris == null) // resource not inside server jar
-                     ris = new FileInputStream('.' + itemName);
-                     os.write(itemName.endsWith(".jar") ? jarHdr :
-                        itemName.endsWith(".class") ? classHdr : imgHdr);
-                     os.write(formatter.format(new Date(new File('.' +
-                        itemName).lastModified())).getBytes());
-                     os.write("\r\nConnection: close\r\n\r\n".getBytes());
-                     for (int i = ris.read(msg); i != -1; i = ris.read(msg))
-                        os.write(msg, 0, i);
-                     ris.close();
-                  } catch (Exception x) { os.write(bye); }
-                  else os.write(bye); // send only jar, class, or image files
-               } else os.write(bye); // no other requests are honored
-               os.flush(); // make sure all bytes are sent
-               os.close(); // terminate client connection
-               is.close(); // terminate further requests from client
-            } catch (Exception x) { x.printStackTrace(); }
-            try { s.close(); } catch (Exception x) { x.printStackTrace(); }
+            final Connection c;
+            try { c = new Connection(s); }
+            catch (IOException x) { // the client has already gone
+               s.close();
+               continue;
+            }
+            if (maxConnections > 0 && connections.size() >= maxConnections) {
+               try { // too busy, tell the client to come back shortly
+                  send(c, busy, close, new byte[0][], false);
+                  s.shutdownOutput();
+               } catch (IOException x) {}
+               s.close();
+               continue;
+            }
+            connections.addElement(c);
+            Thread connection = new Thread(new Runnable() {
+               public void run() { serve(c); }
+            });
+            connection.setDaemon(true);
+            connection.start();
          }
       } catch (Exception x) { x.printStackTrace(); }
       try { ss.close(); } catch (Exception x) { x.printStackTrace(); }
    }
+   private void serve(Connection c) { // each connection has its own thread
+      Socket s = c.socket;
+      try {
+         s.setSoTimeout(KEEPALIVE);
+         Parser parser = new Parser(s.getInputStream(), c);
+         OutputStream os = new BufferedOutputStream(c, 0x8000);
+         byte msg[] = new byte[0x1000]; // allocate a 4k data transfer buffer
+         for (boolean alive = true; alive;) {
+            Request rq = new Request();
+            int status = parser.parse(rq);
+            c.deadline = 0;
+            if (status == 0) break; // the client closed the connection
+            long time = System.currentTimeMillis();
+            if (status != 200) { // the request is malformed, or too large
+               rq.status = status;
+               send(os, status == 414 ? longUri : status == 431 ? largeHdr :
+                  malformed, close, new byte[0][], false);
+               record(rq, c.client, time);
+               os.flush();
+               s.shutdownOutput(); // let the client read it, before closing
+               s.setSoTimeout(1000);
+               InputStream is = s.getInputStream(); // discard the rest
+               for (int i = 0; i < 0x10 && is.read(msg) != -1; i++);
+               break;
+            }
+            alive = rq.alive;
+            respond(os, c, rq, msg, alive ? keep : close);
+            if (parser.idle()) os.flush(); // no more pipelined requests
+            record(rq, c.client, time);
+         }
+         os.flush(); // make sure all bytes are sent
+      } catch (IOException x) { // the client timed out, or disconnected
+      } catch (Exception x) { x.printStackTrace(); }
+      connections.removeElement(c);
+      try { s.close(); } catch (Exception x) { x.printStackTrace(); }
+   }
+   private void record(Request rq, String clientHost, long time) {
+      long duration = System.currentTimeMillis() - time, histogram[];
+      synchronized(latencies) {
+         histogram = (long[])latencies.get(rq.type);
+         if (histogram == null) {
+            histogram = new long[BUCKETS];
+            latencies.put(rq.type, histogram);
+         }
+      }
+      int bucket = 0;
+      for (long t = duration; t > 0 && bucket < BUCKETS - 1; t >>= 1)
+         bucket++;
+      synchronized(histogram) { histogram[bucket]++; }
+      Access access = this.access;
+      if (access != null) access.record(clientHost, rq, time, duration);
+   }
+   private static boolean gzip(String accept) { // Accept-Encoding allows it?
+      for (int i = 0, j; i < accept.length(); i = j + 1) {
+         j = accept.indexOf(',', i);
+         if (j == -1) j = accept.length();
+         String coding = accept.substring(i, j).trim();
+         int k = coding.indexOf(';');
+         if (!(k == -1 ? coding : coding.substring(0, k).trim())
+            .equalsIgnoreCase("gzip")) continue;
+         if (k == -1) return true;
+         String q = coding.substring(k + 1).trim();
+         try {
+            return !q.startsWith("q=") ||
+               Double.valueOf(q.substring(2)).doubleValue() > 0;
+         } catch (NumberFormatException x) { return false; }
+      }
+      return false;
+   }
+   private static long[] range(String range, long length) {
+      if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+         return null; // only single ranges are served, else the whole
+      int i = range.indexOf('-');
+      if (i == -1) return null;
+      String first = range.substring(6, i).trim();
+      String last  = range.substring(i + 1).trim();
+      try {
+         long from, to = length - 1;
+         if (first.length() == 0) { // the final bytes
+            long n = Long.parseLong(last);
+            if (n < 0) return null;
+            if (n == 0 || length == 0) return new long[0];
+            from = n < length ? length - n : 0;
+         } else {
+            from = Long.parseLong(first);
+            if (last.length() > 0) {
+               long n = Long.parseLong(last);
+               if (n < from || from < 0) return null;
+               if (n < to) to = n;
+            }
+            if (from >= length) return new long[0]; // unsatisfiable
+         }
+         return new long[] { from, to };
+      } catch (NumberFormatException x) { return null; }
+   }
+   private static int send(OutputStream os, byte hdr[], byte conn[],
+      byte body[][], boolean head) throws IOException {
+      int length = 0;
+      for (int i = 0; i < body.length; i++) length += body[i].length;
+      os.write(hdr);
+      os.write(("Date: " + now() +
+         "\r\nContent-Length: " + length + "\r\n").getBytes());
+      os.write(conn);
+      if (!head) for (int i = 0; i < body.length; i++) os.write(body[i]);
+      return head ? 0 : length;
+   }
+   private static void notFound(OutputStream os, byte conn[], Request rq)
+      throws IOException {
+      rq.status = 404;
+      rq.sent = send(os, bye, conn, new byte[][] { err }, rq.head);
+   }
+   private static boolean current(Request rq, long modified, String etag) {
+      return rq.match != null ? rq.match.equals("*") ||
+         rq.match.indexOf(etag) != -1 : // If-None-Match has precedence
+         rq.since != -1 && modified / 1000 <= rq.since / 1000;
+   }
+   private String validators(String type, String modified, String etag) {
+      Long maxAge = (Long)maxAges.get(type);
+      return "Date: " + now() + "\r\nLast-Modified: " + modified +
+         "\r\nETag: " + etag + "\r\nCache-control: " +
+         (maxAge != null ? "max-age=" + maxAge : "no-cache") + "\r\n";
+   }
+   private void page(OutputStream os, Connection c, byte hdr[],
+      String type, byte conn[], Template template, String values[],
+      Request rq) throws IOException { // a client specific page
+      CRC32 crc = new CRC32();
+      ByteBuffer page[] = template.render(values, crc);
+      long length = 0;
+      for (int i = 1; i < page.length; i++) length += page[i].remaining();
+      String etag = tag(crc.getValue() ^ template.crc, length, "");
+      rq.type = type;
+      if (current(rq, created, etag)) {
+         rq.status = 304;
+         os.write(unmod);
+         os.write(validators(type, lastModified, etag).getBytes());
+         os.write(conn);
+         return;
+      }
+      byte fields[] = (validators(type, lastModified, etag) +
+         "Content-Length: " + length + "\r\n").getBytes();
+      ByteBuffer head =
+         ByteBuffer.allocate(hdr.length + fields.length + conn.length);
+      head.put(hdr).put(fields).put(conn).flip();
+      page[0] = head;
+      rq.status = 200;
+      rq.sent = rq.head ? 0 : length;
+      if (rq.head) page = new ByteBuffer[] { head };
+      os.flush();
+      c.write(page); // gather the page, and its header, into one write
+   }
+   private Entry resource(String itemName, byte msg[]) throws IOException {
+      Entry entry = (Entry)entries.get(itemName);
+      if (entry != null && entry.file == null) { // jar is fixed
+         synchronized(resources) {
+            if (resources.removeElement(itemName))
+               resources.addElement(itemName);
+         }
+         return entry;
+      }
+      URL url = getClass().getResource(itemName);
+      if (url == null) return null; // resource not inside server jar
+      URLConnection uc = url.openConnection();
+      InputStream ris = uc.getInputStream();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      CRC32 crc = new CRC32();
+      long length = 0;
+      try {
+         for (int i = ris.read(msg); i != -1; i = ris.read(msg)) {
+            crc.update(msg, 0, i);
+            length += i;
+            if (length > CACHED) baos = null; // too big, it will be streamed
+            else baos.write(msg, 0, i);
+         }
+      } finally { ris.close(); }
+      byte bytes[] = baos != null && budget.charge(length) ?
+         baos.toByteArray() : null;
+      entry = new Entry(null, url, uc.getLastModified() > 0 ?
+         uc.getLastModified() : created, length, crc.getValue(), bytes);
+      synchronized(resources) {
+         put(itemName, entry);
+         resources.removeElement(itemName);
+         resources.addElement(itemName);
+         while (resources.size() > RESOURCES)
+            drop(resources.remove(0));
+      }
+      return entry;
+   }
+   private void put(Object name, Entry entry) { // replacing any prior one
+      Entry prior = (Entry)entries.put(name, entry);
+      if (prior != null && prior != entry) budget.refund(prior.drop());
+   }
+   private void drop(Object name) {
+      Entry prior = (Entry)entries.remove(name);
+      if (prior != null) budget.refund(prior.drop());
+   }
+   private static Entry load(File file, long modified, long length,
+      byte msg[], boolean keep) throws IOException { // hash, and maybe keep
+      CRC32 crc = new CRC32();
+      byte bytes[] = keep && length <= CACHED ? new byte[(int)length] : null;
+      FileInputStream fis = new FileInputStream(file);
+      try {
+         if (bytes != null) {
+            for (int n = 0, i; n < bytes.length; n += i)
+               if ((i = fis.read(bytes, n, bytes.length - n)) == -1)
+                  throw new EOFException("File truncated");
+            crc.update(bytes);
+         } else for (int i = fis.read(msg); i != -1; i = fis.read(msg))
+            crc.update(msg, 0, i);
+      } finally { fis.close(); }
+      return new Entry(file, null, modified, length, crc.getValue(), bytes);
+   }
+   private Entry file(String itemName, File file, byte msg[])
+      throws IOException { // a file not yet indexed, or changed since
+      long modified = file.lastModified(), length = file.length();
+      Entry entry = (Entry)entries.get(itemName);
+      if (entry != null && entry.file != null && entry.modified == modified
+         && entry.length == length) return entry; // unchanged
+      entry = load(file, modified, length, msg, false);
+      if (file.lastModified() == modified) // not changed while hashing
+         put(itemName, entry);
+      return entry;
+   }
+   private void index() { // keep the codebase index current
+      for (byte msg[] = new byte[0x1000]; !ss.isClosed();) {
+         try {
+            Hashtable seen = new Hashtable(), walked = new Hashtable();
+            String roots[] = locations();
+            boolean all = true;
+            for (int i = 0; all && i < roots.length; i++) {
+               File file = new File('.' + roots[i]);
+               if (roots[i].endsWith("/"))
+                  all = walk(file, roots[i], seen, walked, msg, 0);
+               else if (servable(roots[i]) && file.isFile())
+                  all = add(file, roots[i], seen, msg);
+            }
+            for (Enumeration e = entries.keys(); e.hasMoreElements();) {
+               Object name = e.nextElement();
+               Entry entry = (Entry)entries.get(name);
+               if (entry != null && entry.file != null &&
+                  !seen.containsKey(name)) drop(name); // deleted
+            }
+            dirs = walked;
+            this.roots = roots;
+            complete = all;
+         } catch (Exception x) { complete = false; }
+         try { Thread.sleep(POLL); }
+         catch (InterruptedException x) { return; }
+      }
+   }
+   private String[] locations() { // the codebase served here, as item names
+      Vector names = new Vector();
+      String codebase = System.getProperty("java.rmi.server.codebase");
+      if (codebase != null) for (StringTokenizer st =
+         new StringTokenizer(codebase); st.hasMoreTokens();) {
+         String url = st.nextToken();
+         if (url.startsWith(loc)) // a jar, or a class directory
+            names.addElement(normal('/' + url.substring(loc.length())));
+      }
+      String roots[] = new String[names.size()];
+      names.copyInto(roots);
+      return roots;
+   }
+   private boolean indexed(String itemName) { // in a codebase location
+      String roots[] = this.roots;
+      for (int i = 0; i < roots.length; i++)
+         if (roots[i].endsWith("/") ? itemName.startsWith(roots[i]) :
+            itemName.equals(roots[i])) return true;
+      return false;
+   }
+   private boolean walk(File dir, String path, Hashtable seen,
+      Hashtable walked, byte msg[], int depth) throws IOException {
+      long modified = dir.lastModified(); // false if too many files
+      Object listing[] = (Object[])dirs.get(path);
+      boolean same = listing != null && // not changed since, nor lately
+         ((Long)listing[0]).longValue() == modified &&
+         ((Long)listing[1]).longValue() - modified > POLL;
+      if (!same) {
+         long listed = System.currentTimeMillis();
+         String names[] = dir.list();
+         if (names == null) return true;
+         Vector files = new Vector(), subdirs = new Vector();
+         for (int i = 0; i < names.length; i++) {
+            if (new File(dir, names[i]).isDirectory())
+               subdirs.addElement(names[i]);
+            else if (servable(path + names[i])) files.addElement(names[i]);
+         }
+         String list[][] = { new String[files.size()],
+            new String[subdirs.size()] };
+         files.copyInto(list[0]);
+         subdirs.copyInto(list[1]);
+         listing = new Object[] { new Long(modified), new Long(listed),
+            list[0], list[1] };
+      }
+      walked.put(path, listing);
+      String files[] = (String[])listing[2], subdirs[] = (String[])listing[3];
+      for (int i = 0; i < files.length; i++) // edits don't change dirs
+         if (!add(new File(dir, files[i]), path + files[i], seen, msg))
+            return false;
+      for (int i = 0; i < subdirs.length; i++)
+         if (depth == DEPTH || !walk(new File(dir, subdirs[i]),
+            path + subdirs[i] + '/', seen, walked, msg, depth + 1))
+            return false;
+      return true;
+   }
+   private boolean add(File file, String name, Hashtable seen, byte msg[])
+      throws IOException { // false if too many files to index
+      if (seen.size() == INDEXED) return false;
+      seen.put(name, name);
+      long modified = file.lastModified(), length = file.length();
+      Entry entry = (Entry)entries.get(name);
+      if (entry != null && entry.file == null) return true; // in server jar
+      if (entry == null || entry.modified != modified ||
+         entry.length != length) { // new, or changed
+         if (entry == null && getClass().getResource(name) != null)
+            return true; // the server jar version takes precedence
+         boolean keep = length <= CACHED && budget.charge(length);
+         try { entry = load(file, modified, length, msg, keep); }
+         catch (IOException x) {
+            if (keep) budget.refund(length);
+            throw x;
+         }
+         if (file.lastModified() != modified) { // next time
+            budget.refund(entry.drop());
+            return true;
+         }
+         put(name, entry);
+      }
+      return true;
+   }
+   private boolean admit(String client) { // to a download slot, if free
+      synchronized(downloads) {
+         int count[] = (int[])downloads.get(client);
+         if (maxDownloads > 0 && active >= maxDownloads ||
+            maxPerClient > 0 && count != null && count[0] >= maxPerClient)
+            return false;
+         if (count == null) {
+            count = new int[1];
+            downloads.put(client, count);
+         }
+         count[0]++;
+         active++;
+         return true;
+      }
+   }
+   private void release(String client) {
+      synchronized(downloads) {
+         int count[] = (int[])downloads.get(client);
+         if (--count[0] == 0) downloads.remove(client);
+         active--;
+      }
+   }
+   private void watch() { // close connections stalled past their deadline
+      while (!ss.isClosed()) {
+         try { Thread.sleep(1000); }
+         catch (InterruptedException x) { return; }
+         long now = System.currentTimeMillis();
+         synchronized(connections) {
+            for (int i = 0; i < connections.size(); i++) {
+               Connection c = (Connection)connections.elementAt(i);
+               long deadline = c.deadline;
+               if (deadline != 0 && deadline < now) try { c.socket.close(); }
+               catch (IOException x) {}
+            }
+         }
+      }
+   }
+   private static String normal(String path) { // without empty, or . parts
+      if (path.indexOf("//") == -1 && path.indexOf("/./") == -1 &&
+         !path.endsWith("/.")) return path; // the usual case
+      StringBuffer sb = new StringBuffer(path.length());
+      for (StringTokenizer st = new StringTokenizer(path, "/");
+         st.hasMoreTokens();) {
+         String part = st.nextToken();
+         if (!part.equals(".")) sb.append('/').append(part);
+      }
+      if (sb.length() == 0 || path.endsWith("/")) sb.append('/');
+      return sb.toString();
+   }
+   private static boolean servable(String itemName) { // only these files
+      return itemName.indexOf("..") == -1 &&
+         !itemName.endsWith("server.jar") && (
+         itemName.equals("/favicon.ico") ||
+         itemName.endsWith(".jar")       ||
+         itemName.endsWith(".class")     ||
+         itemName.endsWith(".gif")       ||
+         itemName.endsWith(".png")       ||
+         itemName.endsWith(".jpg")       ||
+         itemName.endsWith(".jpeg"));
+   }
+   private void respond(OutputStream os, Connection c, Request rq,
+      byte msg[], byte conn[]) throws IOException {
+      String itemName = rq.itemName, clientHost = c.client;
+      if (itemName == null) notFound(os, conn, rq);
+      else if (itemName.indexOf('.') == -1 // gui request
+         && itemName.indexOf('/', 1) == -1) {
+         try { // URL request: parse arguments
+            int ia = itemName.indexOf(':') != -1
+               ? itemName.indexOf(':') : 0;
+            int ib = itemName.indexOf('-') != -1
+               ? itemName.indexOf('-') : ia;
+            int ic = itemName.indexOf('!') != -1
+               ? itemName.indexOf('!') : itemName.length();
+            String clientPort = ia > 1
+               ? itemName.substring(1, ia) : "0";
+            String localPort = ib > ++ia
+               ? itemName.substring(ia, ib) : "0";
+            String proxyName = ic > ++ib
+               ? itemName.substring(ib, ic) : "main";
+            ItemServer.lookup(proxyName); // is object bound?
+            String values[] = { clientHost, clientPort, localPort,
+               Integer.toString(Remote.getDefaultClientPort()), proxyName,
+               Remote.getDefaultClientHost() };
+            if (itemName.indexOf('!') == -1) // Applet request
+               page(os, c, apl, "html", conn, applet, values, rq);
+            else // WebStart request
+               page(os, c, jws, "jnlp", conn, webstart, values, rq);
+         } catch (Exception x) {
+            notFound(os, conn, rq);
+         }
+      } else if (servable(itemName)) { // file request
+         rq.type = itemName.substring(itemName.lastIndexOf('.') + 1);
+         Entry entry = (Entry)entries.get(itemName); // normally indexed
+         boolean stale = entry != null && entry.bytes == null && // read
+            entry.file != null && // from disk, check it is as when indexed
+            entry.file.lastModified() != entry.modified;
+         if (entry == null || stale) entry = resource(itemName, msg);
+         if (entry == null && (!complete || stale || !indexed(itemName))) {
+            File file = new File('.' + itemName);
+            if (file.isFile()) entry = file(itemName, file, msg);
+         }
+         if (entry == null) {
+            notFound(os, conn, rq);
+            return;
+         }
+         byte bytes[] = rq.gzip ? entry.gzip(msg, budget) : null;
+         boolean packed = bytes != null;
+         String etag = packed ? entry.gzipTag : entry.etag;
+         if (!packed) bytes = entry.bytes;
+         long length = bytes != null ? bytes.length : entry.length;
+         long span[] = rq.range == null || current(rq, entry.modified,
+            etag) || rq.ifRange != null && !rq.ifRange.equals(etag) &&
+            since(rq.ifRange) != entry.modified / 1000 * 1000 ? null :
+            range(rq.range, length); // the part the client is missing
+         if (span != null && span.length == 0) { // beyond the end
+            rq.status = 416;
+            os.write(bad);
+            os.write(("Date: " + now() +
+               "\r\nContent-Range: bytes */" + length +
+               "\r\nContent-Length: 0\r\n").getBytes());
+            os.write(conn);
+            return;
+         }
+         boolean current = current(rq, entry.modified, etag);
+         boolean download = !current && !rq.head;
+         if (download && !admit(clientHost)) { // too many downloads
+            rq.status = 503;
+            send(os, busy, conn, new byte[0][], false);
+            return;
+         }
+         try {
+            rq.status = current ? 304 : span != null ? 206 : 200;
+            os.write(current ? unmod : span != null ? part : ok);
+            if (!current) os.write(itemName.endsWith(".jar") ? jarHdr :
+               itemName.endsWith(".class") ? classHdr : imgHdr);
+            os.write(validators(rq.type, entry.lastModified, etag)
+               .getBytes());
+            os.write(vary);
+            if (current) {
+               os.write(conn);
+               return;
+            }
+            if (packed) os.write(zip);
+            long from = span != null ? span[0] : 0;
+            long count = span != null ? span[1] - from + 1 : length;
+            os.write(((span != null ? "Content-Range: bytes " + from + '-'
+               + span[1] + '/' + length + "\r\n" : "") +
+               "Content-Length: " + count + "\r\n").getBytes());
+            os.write(conn);
+            if (rq.head) return;
+            rq.sent = count;
+            os.flush();
+            if (bytes != null) c.write(bytes, from, count, null, msg);
+            else if (entry.file != null) {
+               FileInputStream fis = new FileInputStream(entry.file);
+               try { c.write(null, from, count, fis.getChannel(), msg); }
+               finally { fis.close(); }
+            } else { // a large class path resource
+               InputStream ris = entry.url.openStream();
+               try { c.write(ris, from, count, msg); }
+               finally { ris.close(); }
+            }
+         } finally { if (download) release(clientHost); }
+      } else notFound(os, conn, rq);
+   }
+   private static String tag(long crc, long length, String variant) {
+      return "\"" + Long.toHexString(crc) + '-' + Long.toHexString(length) +
+         variant + '"';
+   }
+   private static String date(long time) {
+      synchronized(formatter) { return formatter.format(new Date(time)); }
+   }
+   private static long second = -1; // of the current Date header
+   private static String today;
+   private static String now() { // formatted once per second, at most
+      long time = System.currentTimeMillis();
+      synchronized(formatter) {
+         if (time / 1000 != second) {
+            second = time / 1000;
+            today = formatter.format(new Date(time));
+         }
+         return today;
+      }
+   }
+   private static long since(String date) { // If-Modified-Since, or -1
+      if (date != null) try {
+         synchronized(formatter) { return formatter.parse(date).getTime(); }
+      } catch (ParseException x) {} // other date formats are not compared
+      return -1;
+   }
    /**
     * The application creates a utility server to share any jar and class
     * files in its working directory and subdirectories. It is very useful in
@@ -3,10 +3,19 @@ package gnu.cajo.utils;
 import gnu.cajo.invoke.*;
 import java.rmi.registry.*;
 import java.text.DateFormat;
-import java.net.URL;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Enumeration;
+import java.util.jar.JarFile;
+import java.util.jar.JarEntry;
+import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.rmi.RemoteException;
 import java.rmi.MarshalledObject;
 import java.rmi.server.RMIClientSocketFactory;
@@ -64,24 +73,66 @@ import java.rmi.server.RMIServerSocketFactory;
  */
 public class ItemServer {
   // a small utility ClassLoader, to load server plug-in objects from jar files.
+  // One is kept per jar file, which is opened, and indexed, only once. The
+  // classes it loads are cached. Loading is synchronized on the loader, as
+  // the VM also locks it while defining and resolving its classes.
   private static final String NONE[] = {};
   private static final class JarClassLoader extends ClassLoader {
-     final String path;
-     JarClassLoader(String jarFile) { path = "jar:file:" + jarFile + "!/"; }
-     public Class loadClass(String name) throws ClassNotFoundException {
-        try { return super.findSystemClass(name); }
+     private static final HashMap loaders = new HashMap(); // by jar path
+     private final JarFile jar;
+     private final HashMap entries = new HashMap(); // class name to entry
+     private final HashMap classes = new HashMap(); // class name to class
+     private JarClassLoader(JarFile jar) {
+        this.jar = jar;
+        for (Enumeration e = jar.entries(); e.hasMoreElements();) {
+           JarEntry entry = (JarEntry)e.nextElement();
+           String name = entry.getName();
+           if (name.endsWith(".class")) entries.put(name.substring(0,
+              name.length() - 6).replace('/', '.'), entry);
+        }
+     }
+     static JarClassLoader get(String file) throws IOException {
+        String path = new File(file).getCanonicalPath();
+        synchronized(loaders) {
+           JarClassLoader loader = (JarClassLoader)loaders.get(path);
+           if (loader == null) {
+              loader = new JarClassLoader(new JarFile(path));
+              loaders.put(path, loader);
+           }
+           return loader;
+        }
+     }
+     public synchronized Class loadClass(String name)
+        throws ClassNotFoundException {
+        Class result = (Class)classes.get(name);
+        if (result != null) return result;
+        try { result = super.findSystemClass(name); }
         catch(ClassNotFoundException x) {
-           try {
-              String url = path + name.replace('.', '/') + ".class";
-              InputStream is = new URL(url).openConnection().getInputStream();
-              byte bytes[] = new byte[is.available()];
-              is.read(bytes);
-              is.close();
-              Class result = defineClass(name, bytes, 0, bytes.length);
-              resolveClass(result);
-              return result;
-           } catch(IOException y) { return null; }
+           JarEntry entry = (JarEntry)entries.get(name);
+           if (entry == null) throw x;
+           byte bytes[];
+           try { bytes = read(entry); }
+           catch(IOException y) { throw new ClassNotFoundException(name); }
+           result = defineClass(name, bytes, 0, bytes.length);
+           resolveClass(result);
         }
+        classes.put(name, result);
+        return result;
+     }
+     private byte[] read(JarEntry entry) throws IOException {
+        InputStream is = jar.getInputStream(entry);
+        try {
+           int size = (int)entry.getSize();
+           if (size >= 0) { // the usual case
+              byte bytes[] = new byte[size];
+              new DataInputStream(is).readFully(bytes);
+              return bytes;
+           }
+           ByteArrayOutputStream baos = new ByteArrayOutputStream();
+           byte buffer[] = new byte[0x1000];
+           for (int n; (n = is.read(buffer)) != -1;) baos.write(buffer, 0, n);
+           return baos.toByteArray();
+        } finally { is.close(); }
      }
   }
   static {
@@ -89,8 +140,23 @@ public class ItemServer {
         System.setProperty("java.security.policy", "server.policy");
      System.setProperty("java.rmi.server.useCodebaseOnly", "true");
   }
+  private static final int SHARDS = 16; // independently locked name sets
+  private static final TreeMap names[] = new TreeMap[SHARDS];
+  static { for (int i = 0; i < SHARDS; i++) names[i] = new TreeMap(); }
   private static Registry registry;
   private static HashMap registries = new HashMap();
+  private static final Hashtable loadTimes = new Hashtable();
+  private static TreeMap shard(String name) {
+     return names[(name.hashCode() & 0x7FFFFFFF) % SHARDS];
+  }
+  private static synchronized Registry registry() throws RemoteException {
+     if (registry == null)
+        registry = LocateRegistry.createRegistry(
+           Remote.getDefaultServerPort(),
+              Remote.getDefaultClientSocketFactory(),
+                 Remote.getDefaultServerSocketFactory());
+     return registry;
+  }
   /**
    * Nothing happens in the default constructor of this class. This is used
    * when the server has its own internal {@link CodebaseServer CodebaseServer}
@@ -196,7 +262,10 @@ public class ItemServer {
    * <i>Note:</i> plug-in objects typically do not support proxies. This
    * is because the system rmi codebase property is typically set by the
    * master server, to serve its own proxy jar file, when it has one. There
-   * can be only one codebase for a given JVM instance.
+   * can be only one codebase for a given JVM instance.<p>
+   * Each jar file is opened, and indexed, only once; plug-ins from the same
+   * jar share its loaded classes. Therefore a jar file replaced while the
+   * server is running will not be reloaded.
    * @param name The name under which to bind the object reference in the
    * a local rmiregistry. If an object is already bound under this name, this
    * object will replace it.
@@ -221,9 +290,30 @@ public class ItemServer {
   public static Remote bind(String name, String item, String file) throws
      ClassNotFoundException, InstantiationException, IllegalAccessException,
      RemoteException {
-     Class c = new JarClassLoader(file).loadClass(item);
-     try { return bind(c.newInstance(), name, null, null, null, 0); }
-     catch(IOException x) { return null; } // can't happen, no proxy
+     long time = System.currentTimeMillis();
+     JarClassLoader loader;
+     try { loader = JarClassLoader.get(file); }
+     catch(IOException x) { throw new NullPointerException(x.getMessage()); }
+     Class c = loader.loadClass(item);
+     try {
+        Remote handle = bind(c.newInstance(), name, null, null, null, 0);
+        loadTimes.put(name, new Long(System.currentTimeMillis() - time));
+        return handle;
+     } catch(IOException x) { return null; } // can't happen, no proxy
+  }
+  /**
+   * This utility function reports how long the startup of a plug-in object
+   * took, when it was bound from its jar file, via the {@link
+   * #bind(String, String, String) bind} method. It includes opening and
+   * indexing the jar, if it is the first plug-in from it, loading its
+   * classes, instantiating the object, and binding it.
+   * @param name The name under which the plug-in object was bound
+   * @return The time taken, in milliseconds, or -1 if no plug-in object was
+   * bound under this name
+   */
+  public static long getLoadTime(String name) {
+     Long time = (Long)loadTimes.get(name);
+     return time != null ? time.longValue() : -1;
   }
   /**
    * This method is used to bind a proxy serving object in the defalut local
@@ -301,22 +391,23 @@ public class ItemServer {
      }
      try { Remote.invoke(item, "startThread", null); }
      catch(Exception x) { /* method unimplemented, that's OK */ }
-     synchronized(ItemServer.class) { // time to bind it
-        if (csf == null || ssf == null) {
-           if (registry == null)
-              registry = LocateRegistry.createRegistry(
-                 Remote.getDefaultServerPort(),
-                    Remote.getDefaultClientSocketFactory(),
-                        Remote.getDefaultServerSocketFactory());
+     if (csf == null || ssf == null) { // time to bind it
+        Registry registry = registry();
+        TreeMap shard = shard(name);
+        synchronized(shard) { // binds of other names proceed concurrently
            registry.rebind(name, handle);
-        } else {
-           Registry custom = (Registry)registries.get(new Integer(port));
+           shard.put(name, handle);
+        }
+     } else {
+        Registry custom;
+        synchronized(registries) {
+           custom = (Registry)registries.get(new Integer(port));
            if (custom == null) {
               custom = LocateRegistry.createRegistry(port, csf, ssf);
               registries.put(new Integer(port), custom);
            }
-           custom.rebind(name, handle);
         }
+        custom.rebind(name, handle);
      }
      return handle;
   }
@@ -325,32 +416,97 @@ public class ItemServer {
    * All existing remote references will remain valid. To make the object
    * available to new clients again, the bind operation must be called. The
    * operation is idempotent; i.e. if the name has already been unbound, or
-   * has never been bound, it will have no affect.
+   * has never been bound, it will have no affect. Objects bound in the
+   * rmiregistry by other means, e.g. via java.rmi.Naming, are also unbound.
    * @param name The name under which the object can be found on this server
    */
   public static void unbind(String name) {
-     try { if (registry != null) registry.unbind(name); }
-     catch(Exception x) {}
+     TreeMap shard = shard(name);
+     synchronized(shard) {
+        shard.remove(name);
+        try { if (registry != null) registry.unbind(name); }
+        catch(Exception x) {}
+     }
   }
   /**
    * This utility function returns all of the objects currently bound in this
-   * JVM.
-   * @return Zero or more names of objects available for use
+   * JVM. The names of objects bound in the rmiregistry by other means, e.g.
+   * via java.rmi.Naming, are included, as for the other list methods; to
+   * find them, the whole registry is listed.
+   * @return Zero or more names of objects available for use, in order
+   */
+  public static final String[] list() { return list("", null, -1); }
+  /**
+   * This utility function returns the objects currently bound in this JVM,
+   * whose names begin with the provided prefix. It only examines the
+   * matching names of the index of this class, rather than all of them;
+   * though the rmiregistry is listed too, as by the {@link #list() list}
+   * method.
+   * @param prefix The beginning of the names of interest, an empty string
+   * matches all names
+   * @return Zero or more names of objects available for use, in order
    */
-  public static final String[] list() {
-     if (registry != null) try { return registry.list(); }
-     catch(RemoteException x) {} // won't happen since registry is local
-     return NONE;
+  public static final String[] list(String prefix) {
+     return list(prefix, null, -1);
+  }
+  /**
+   * This utility function returns one page of the names of the objects
+   * currently bound in this JVM, in order. To iterate through all of them,
+   * the last name of each page is provided to obtain the next; a page with
+   * fewer than the requested number of names is the last.
+   * @param after The name following which the page begins, or null for the
+   * first page
+   * @param count The maximum number of names to return
+   * @return Zero or more names of objects available for use, in order
+   */
+  public static final String[] list(String after, int count) {
+     return list("", after, count);
+  }
+  private static String[] list(String prefix, String after, int count) {
+     String from = after != null && after.compareTo(prefix) >= 0 ?
+        after + '\0' : prefix; // the first name following after
+     TreeMap page = new TreeMap();
+     for (int i = 0; i < SHARDS; i++) synchronized(names[i]) {
+        SortedMap tail = names[i].tailMap(from);
+        int n = 0;
+        for (Iterator j = tail.keySet().iterator(); j.hasNext() &&
+           (count < 0 || n++ < count);) {
+           String name = (String)j.next();
+           if (!name.startsWith(prefix)) break;
+           page.put(name, name);
+        }
+     }
+     if (registry != null) try { // also those not bound by this class
+        String bound[] = registry.list();
+        for (int i = 0; i < bound.length; i++)
+           if (bound[i].startsWith(prefix) && bound[i].compareTo(from) >= 0) {
+              page.put(bound[i], bound[i]);
+              if (count >= 0 && page.size() > count)
+                 page.remove(page.lastKey());
+           }
+     } catch(RemoteException x) {} // won't happen since registry is local
+     String list[] = (String[])page.keySet().toArray(NONE);
+     if (count < 0 || list.length <= count) return list;
+     String first[] = new String[count];
+     System.arraycopy(list, 0, first, 0, count);
+     return first;
   }
   /**
    * This utility function returns a reference to a remote object bound on
-   * this JVM, if it exists.
+   * this JVM, if it exists. It is normally found in the name index of this
+   * class; the rmiregistry is consulted only for names bound in it by other
+   * means, e.g. via java.rmi.Naming.
    * @param name The name of the object in the registry
    * @return A remote reference to the object
-   * 
+   * @throws java.rmi.NotBoundException If no object is bound under the name
    */
   public static java.rmi.Remote lookup(String name)
      throws java.rmi.NotBoundException {
+     TreeMap shard = shard(name);
+     java.rmi.Remote item;
+     synchronized(shard) { item = (java.rmi.Remote)shard.get(name); }
+     if (item != null) return item;
+     if (registry == null) throw new java.rmi.NotBoundException(name);
      try { return registry.lookup(name); }
      catch(RemoteException x) { return null; } // can't happen
   }
@@ -5,6 +5,12 @@ import java.io.*;
 import java.net.*;
 import java.rmi.registry.*;
 import java.rmi.MarshalledObject;
+import java.util.Vector;
+import java.util.Hashtable;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
 
 /*
  * Multicast Announcement Class
@@ -35,7 +41,8 @@ import java.rmi.MarshalledObject;
  * reference to a remote object as a zipped MarshalledObject (zedmob).  It also
  * allows a listening object to receive announced object referencess via a
  * callback mechanism. A single VM can use as many Multicast objects as it
- * wishes.
+ * wishes. Each object keeps a single socket open for its announcements, and
+ * can {@link #throttle throttle} their rate.
  * <p><i>Note:</i> this class requires that the network routers be configured
  * to pass IP multicast packets, at least for the multicast address used.  If
  * not, the packets will will only exist within the subnet of origination.
@@ -44,8 +51,259 @@ import java.rmi.MarshalledObject;
  * @author John Catherino
  */
 public final class Multicast implements Runnable {
-   private Object callback;
-   private Thread thread;
+   /**
+    * This class is a compact, binary announcement of a bound object. Unlike
+    * the zedmob announcement, it contains no serialised stub; only the host,
+    * port, and name under which the object is bound, its object id, a
+    * fingerprint of each of its interfaces, and an application defined load
+    * hint. It is written and parsed directly, without Java serialisation,
+    * or class loading; so a receiver can decide whether it is interested
+    * in the object, before {@link #fetch fetching} its reference.
+    */
+   public static final class Beacon {
+      private static final int MAGIC = 0x4342; // "CB", never a gzip header
+      private static final int VERSION = 1;
+      private final int interfaces[];
+      private final byte packet[];
+      private Object item;
+      /**
+       * The network address on which clients connect to the announced
+       * object's rmiregistry.
+       */
+      public final String host;
+      /**
+       * The TCP port on which clients connect to the announced object's
+       * rmiregistry.
+       */
+      public final int port;
+      /**
+       * The name under which the announced object is bound in its
+       * rmiregistry.
+       */
+      public final String name;
+      /**
+       * The hash of the announced object's remote identity; a different
+       * value for the same host, port, and name indicates that it has been
+       * rebound, or its server restarted.
+       */
+      public final int id;
+      /**
+       * An application specific indication of the announcing server's
+       * load, zero if unused.
+       */
+      public final int load;
+      /**
+       * The constructor describes an object bound in the local rmiregistry,
+       * for example via {@link ItemServer#bind(Object, String) ItemServer},
+       * reachable on the JVM's default client host and port.
+       * @param name The name under which the object is bound
+       * @param item The remoted object reference returned from binding,
+       * the interfaces of its wrapped object are fingerprinted
+       * @param load An application specific load hint, zero if unused
+       * @throws IOException If the name is too long to fit in a packet
+       */
+      public Beacon(String name, Remote item, int load) throws IOException {
+         Vector list = new Vector();
+         for (Class c = item.item.getClass(); c != null; c = c.getSuperclass())
+            fingerprints(c, list);
+         interfaces = new int[list.size()];
+         for (int i = 0; i < interfaces.length; i++)
+            interfaces[i] = ((Integer)list.elementAt(i)).intValue();
+         this.host = Remote.getDefaultClientHost();
+         this.port = Remote.getDefaultClientPort();
+         this.name = name;
+         this.id = item.hashCode();
+         this.load = load;
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         DataOutputStream dos = new DataOutputStream(baos);
+         dos.writeShort(MAGIC);
+         dos.writeByte(VERSION);
+         dos.writeUTF(host);
+         dos.writeInt(port);
+         dos.writeUTF(name);
+         dos.writeInt(id);
+         dos.writeInt(load);
+         dos.writeShort(interfaces.length);
+         for (int i = 0; i < interfaces.length; i++)
+            dos.writeInt(interfaces[i]);
+         dos.close();
+         packet = baos.toByteArray();
+      }
+      private Beacon(InputStream is) throws IOException {
+         DataInputStream dis = new DataInputStream(is);
+         if (dis.readUnsignedShort() != MAGIC || dis.readUnsignedByte() >
+            VERSION) throw new StreamCorruptedException("Unknown beacon");
+         host = dis.readUTF();
+         port = dis.readInt();
+         name = dis.readUTF();
+         id = dis.readInt();
+         load = dis.readInt();
+         interfaces = new int[dis.readUnsignedShort()];
+         for (int i = 0; i < interfaces.length; i++)
+            interfaces[i] = dis.readInt();
+         packet = null;
+      }
+      private static void fingerprints(Class c, Vector list) {
+         Class ifs[] = c.getInterfaces();
+         for (int i = 0; i < ifs.length; i++) {
+            Integer fingerprint = new Integer(fingerprint(ifs[i]));
+            if (!list.contains(fingerprint)) list.add(fingerprint);
+            fingerprints(ifs[i], list);
+         }
+      }
+      private static boolean isBeacon(byte buffer[], int length) {
+         return length > 2 && ((buffer[0] & 0xFF) << 8 |
+            (buffer[1] & 0xFF)) == MAGIC;
+      }
+      /**
+       * This method computes the fingerprint of an interface, as carried in
+       * beacons. It depends only on the interface's fully qualified name.
+       * @param type The interface to fingerprint
+       * @return The fingerprint of the interface
+       */
+      public static int fingerprint(Class type) {
+         return fingerprint(type.getName());
+      }
+      /**
+       * This method computes the fingerprint of an interface by name, for
+       * parties which do not have its class.
+       * @param name The fully qualified name of the interface
+       * @return The fingerprint of the interface
+       */
+      public static int fingerprint(String name) { return name.hashCode(); }
+      /**
+       * This method provides the fingerprints of all of the interfaces of
+       * the announced object.
+       * @return A copy of the fingerprints carried in the beacon
+       */
+      public int[] getFingerprints() { return (int[])interfaces.clone(); }
+      /**
+       * This method checks if the announced object implements an interface,
+       * according to its fingerprints.
+       * @param type The interface of interest
+       * @return True if the object probably implements the interface, false
+       * if it definitely does not
+       */
+      public boolean supports(Class type) {
+         int fingerprint = fingerprint(type);
+         for (int i = 0; i < interfaces.length; i++)
+            if (interfaces[i] == fingerprint) return true;
+         return false;
+      }
+      /**
+       * This method requests the announced object's remote reference from
+       * its rmiregistry. The reference is obtained only once, subsequent
+       * calls return the same one.
+       * @return The remote reference to the announced object
+       * @throws Exception If the reference could not be obtained, for
+       * network, or registry reasons
+       */
+      public synchronized Object fetch() throws Exception {
+         if (item == null)
+            item = Remote.getItem("//" + host + ':' + port + '/' + name);
+         return item;
+      }
+      /**
+       * This method describes the beacon as its rmiregistry URL.
+       * @return The URL from which the announced object can be fetched
+       */
+      public String toString() { return "//" + host + ':' + port + '/' + name; }
+   }
+   /**
+    * This internal use only helper class is a worker's reusable packet
+    * decoder. It reads zedmob packets directly from the packet bytes, with
+    * a retained inflater and output buffer, rather than creating a chain
+    * of input streams, buffers, and an inflater, for every packet.
+    */
+   private static final class Decoder extends ByteArrayInputStream {
+      private static final int LIMIT = 0x100000; // max inflated packet size
+      private final Inflater inflater = new Inflater(true);
+      private final CRC32 crc = new CRC32();
+      private byte plain[] = new byte[0x1000];
+      private Decoder() { super(new byte[0]); }
+      private InputStream wrap(byte data[], int length) {
+         buf = data;
+         pos = mark = 0;
+         count = length;
+         return this;
+      }
+      private long hash(byte packet[], int length) {
+         crc.reset();
+         crc.update(packet, 0, length);
+         return crc.getValue() << 32 | length;
+      }
+      private Object zedmob(byte packet[], int length)
+         throws ClassNotFoundException, IOException {
+         int offset = 10; // skip the gzip header, and its optional fields
+         if (length < 18 || packet[0] != (byte)0x1F ||
+            packet[1] != (byte)0x8B || packet[2] != 8)
+            throw new StreamCorruptedException("Not a zedmob");
+         int flags = packet[3];
+         if ((flags & 4) != 0) offset += 2 +
+            ((packet[offset] & 0xFF) | (packet[offset + 1] & 0xFF) << 8);
+         if ((flags & 8) != 0) while (offset < length && packet[offset++] != 0);
+         if ((flags & 16) != 0) while (offset < length && packet[offset++] != 0);
+         if ((flags & 2) != 0) offset += 2;
+         if (offset > length - 8)
+            throw new StreamCorruptedException("Truncated zedmob");
+         inflater.reset();
+         inflater.setInput(packet, offset, length - 8 - offset);
+         int size = 0;
+         try {
+            while (!inflater.finished()) {
+               if (size == plain.length) {
+                  if (size >= LIMIT)
+                     throw new StreamCorruptedException("Zedmob too large");
+                  byte temp[] = new byte[size * 2];
+                  System.arraycopy(plain, 0, temp, 0, size);
+                  plain = temp;
+               }
+               int n = inflater.inflate(plain, size, plain.length - size);
+               if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                  throw new StreamCorruptedException("Truncated zedmob");
+               size += n;
+            }
+         } catch(DataFormatException x) {
+            throw new StreamCorruptedException(x.getMessage());
+         }
+         crc.reset();
+         crc.update(plain, 0, size);
+         int trailer = length - 8;
+         long check = (packet[trailer] & 0xFF) |
+            (packet[trailer + 1] & 0xFF) << 8 |
+            (packet[trailer + 2] & 0xFF) << 16 |
+            ((long)packet[trailer + 3] & 0xFF) << 24;
+         if (check != crc.getValue())
+            throw new StreamCorruptedException("Corrupt zedmob");
+         ObjectInputStream ois = new ObjectInputStream(wrap(plain, size));
+         MarshalledObject mob = (MarshalledObject)ois.readObject();
+         return mob.get();
+      }
+   }
+   private static final int SLOTS = 64; // receive buffer size, in packets
+   private static final int DECODED = 64; // decoded announcements retained
+   private final Hashtable decoded = new Hashtable();
+   private final Vector decodedOrder = new Vector();
+   private long window;
+   private final byte slots[][] = new byte[SLOTS][];
+   private final int lengths[] = new int[SLOTS];
+   private final InetAddress sources[] = new InetAddress[SLOTS];
+   private int head, count;
+   private long received, dropped, duplicates;
+   private long second, counted, rate, decodes, decodeTime;
+   private static final Hashtable groups = new Hashtable();
+   private String key; // in groups, if shared
+   private int users;  // of the shared object
+   private MulticastSocket listener;
+   private final Vector callbacks = new Vector();
+   private volatile Thread thread; // the receiver, read by the workers
+   private Thread sender;
+   private InetAddress group;
+   private MulticastSocket announcer;
+   private long interval, last;
+   private final WeakHashMap packets = new WeakHashMap();
+   private final Vector queue = new Vector();
+   private final Hashtable pending = new Hashtable();
    /**
     * The network interface on which this multicast object is listening
     */
@@ -63,17 +321,25 @@ public final class Multicast implements Runnable {
     */
    public final int port;
    /**
-    * A reference to the address of the calling VM, when the object is
-    * listening. It is referenced by the called listener, and should be
+    * A reference to the address of the calling VM, in the object provided
+    * to the listener. It is referenced by the called listener, and should be
     * considered valid for the duration of the invocation only.
     */
    public InetAddress iaddr;
    /**
-    * A reference to a received remote object reference, when the object is
-    * listening.  It is referenced by the called listener, and should be
-    * considered valid for the duration of the invocation only.
+    * A reference to a received remote object reference, in the object
+    * provided to the listener.  It is referenced by the called listener, and
+    * should be considered valid for the duration of the invocation only. It
+    * is null if the announcement was made with a {@link Beacon beacon}.
     */
    public RemoteInvoke item;
+   /**
+    * A reference to a received {@link Beacon beacon}, in the object provided
+    * to the listener, if the announcement was made with one; in which case
+    * its item member will be null. It is referenced by the called listener,
+    * and should be considered valid for the duration of the invocation only.
+    */
+   public Beacon beacon;
    /**
     * The default constructor sets the internal fields to default values which
     * should be sufficient for most purposes. The multicast socket address
@@ -132,13 +398,58 @@ public final class Multicast implements Runnable {
       this.address = address;
       this.port = port;
    }
+   /**
+    * This method provides a Multicast object shared by the whole JVM, for
+    * a given network interface, address, and port. It allows several
+    * independent listeners, e.g. several {@link gnu.cajo.Cajo Cajo}
+    * objects, to use a single socket and receiving thread, rather than
+    * each receiving and decoding every announcement themselves. Listeners
+    * of a shared object should {@link #stop(Object) stop} only their own
+    * callbacks, rather than all of them. Each invocation of this method
+    * should be matched by one of {@link #close close}; the shared object is
+    * only closed, and no longer provided, once all of its users close it.
+    * @param host The network interface on which to send or receive
+    * multicasts, null for the default one
+    * @param address The multicast socket domain name, or address
+    * @param port The UDP port number on which to announce and listen
+    * @return The Multicast object shared for these parameters
+    * @throws java.net.UnknownHostException If the specified host address
+    * could not be resolved, or is invalid.
+    */
+   public static Multicast group(String host, String address, int port)
+      throws UnknownHostException {
+      if (host == null) host = InetAddress.getLocalHost().getHostAddress();
+      String key = InetAddress.getByName(host).getHostAddress() + '/' +
+         InetAddress.getByName(address).getHostAddress() + ':' + port;
+      synchronized(groups) {
+         Multicast multicast = (Multicast)groups.get(key);
+         if (multicast == null) {
+            multicast = new Multicast(host, address, port);
+            multicast.key = key;
+            groups.put(key, multicast);
+         }
+         multicast.users++;
+         return multicast;
+      }
+   }
+   private Multicast(Multicast multicast, InetAddress iaddr,
+      Object item) { // describes a received announcement
+      host = multicast.host;
+      address = multicast.address;
+      port = multicast.port;
+      this.iaddr = iaddr;
+      if (item instanceof Beacon) beacon = (Beacon)item;
+      else this.item = (RemoteInvoke)item;
+   }
    /**
     * This method is used to make UDP announcements on the network. The
     * provided object will first have its startThread method invoked with a
     * null argument, to signal it to start its main processing thread (if it
     * has one). Next it will have its setProxy method invoked remote reference
     * to itself, with which it can share with remote VMs, in an application
-    * specific manner (again if it has one).
+    * specific manner (again if it has one). The encoded announcement packet
+    * for a remoted item is retained; subsequent announcements of the same
+    * item reuse it, without calling either method again.
     * @param item The object reference to be sent in the announcement
     * packet, if it is not already remoted, it will be, automatically.
     * @param ttl The time-to-live of the broadcast packet. This roughly
@@ -151,22 +462,17 @@ public final class Multicast implements Runnable {
     * packet could not be sent.
     */
    public void announce(Object item, int ttl) throws IOException {
-      InetAddress group = InetAddress.getByName(address);
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
       if (!(item instanceof Remote)) item = new Remote(item);
-      try {
-         Remote.invoke(item, "startThread", null);
-         Remote.invoke(item, "setProxy", new MarshalledObject(item));
-      } catch(Exception x) {}
-      ((Remote)item).zedmob(baos);
-      byte packet[] = baos.toByteArray();
-      baos.close();
-      MulticastSocket ms = new MulticastSocket();
-      try {
-         ms.setInterface(host);
-         ms.setTimeToLive(ttl);
-         ms.send(new DatagramPacket(packet, packet.length, group, port));
-      } finally { ms.close(); }
+      byte packet[];
+      synchronized(packets) { packet = (byte[])packets.get(item); }
+      if (packet == null) { // first announcement of this item
+         try {
+            Remote.invoke(item, "startThread", null);
+            Remote.invoke(item, "setProxy", new MarshalledObject(item));
+         } catch(Exception x) {}
+         packet = encode((Remote)item);
+      }
+      send(item, packet, ttl);
    }
    /**
     * This method is used to make UDP announcements on the network. The
@@ -190,8 +496,6 @@ public final class Multicast implements Runnable {
     */
    public void announce(Object item, int ttl, Object proxy)
       throws IOException {
-      InetAddress group = InetAddress.getByName(address);
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
       if (!(item instanceof Remote)) item = new Remote(item);
       try { Remote.invoke(proxy, "setItem", item); }
       catch(Exception x) {}
@@ -199,77 +503,456 @@ public final class Multicast implements Runnable {
          Remote.invoke(item, "startThread", null);
          Remote.invoke(item, "setProxy", new MarshalledObject(proxy));
       } catch(Exception x) {}
-      ((Remote)item).zedmob(baos);
+      byte packet[];
+      synchronized(packets) { packet = (byte[])packets.get(item); }
+      send(item, packet != null ? packet : encode((Remote)item), ttl);
+   }
+   /**
+    * This method is used to make compact UDP announcements on the network.
+    * The beacon describes an object already bound in the local rmiregistry;
+    * receivers obtain its reference only if they need it, via the beacon's
+    * {@link Beacon#fetch fetch} method. Listeners receive it in the beacon
+    * member of the Multicast object they are given, rather than its item
+    * member, which is null.<p>
+    * <i><u>Note</u>:</i> listeners using earlier versions of this class
+    * cannot parse beacons, nor can listeners expecting an item; announce
+    * with beacons only where all of the listeners on the address expect
+    * them.
+    * @param beacon The beacon to be sent in the announcement packet
+    * @param ttl The time-to-live of the broadcast packet, as for announcing
+    * an item
+    * @throws IOException If a datagram socket could not be created, or the
+    * packet could not be sent.
+    */
+   public void announce(Beacon beacon, int ttl) throws IOException {
+      send(beacon, beacon.packet, ttl);
+   }
+   /**
+    * This method limits the rate at which this object sends announcement
+    * packets. Announcements requested faster than this are queued, and sent
+    * by a background thread, one per interval. Repeated announcements of the
+    * same item, while it is still queued, are coalesced into one. This
+    * protects the network, e.g. when a server exports many objects at
+    * startup. By default there is no limit; each announcement is sent
+    * immediately.<p>
+    * <i><u>Note</u>:</i> only the announcement which is sent immediately can
+    * report an IOException to its caller, failures sending queued ones are
+    * printed to System.err.
+    * @param interval The minimum time between announcement packets, in
+    * milliseconds, zero to send each announcement immediately
+    */
+   public void throttle(long interval) {
+      synchronized(queue) {
+         this.interval = interval > 0 ? interval : 0;
+         queue.notify();
+      }
+   }
+   private byte[] encode(Remote item) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      item.zedmob(baos);
       byte packet[] = baos.toByteArray();
       baos.close();
-      MulticastSocket ms = new MulticastSocket();
+      synchronized(packets) { packets.put(item, packet); }
+      return packet;
+   }
+   private void send(Object item, byte packet[], int ttl) throws IOException {
+      synchronized(queue) {
+         long now = System.currentTimeMillis();
+         if (interval > 0 && (queue.size() > 0 || now < last + interval)) {
+            Object prior[] = (Object[])pending.get(item);
+            if (prior == null) queue.add(item);
+            else if (((Integer)prior[1]).intValue() > ttl) // keep farthest
+               ttl = ((Integer)prior[1]).intValue();
+            pending.put(item, new Object[] { packet, new Integer(ttl) });
+            if (sender == null) {
+               sender = new Thread(new Runnable() {
+                  public void run() { drain(); }
+               });
+               sender.setDaemon(true);
+               sender.start();
+            } else queue.notify();
+            return;
+         }
+         last = now;
+      }
+      transmit(packet, ttl);
+   }
+   private void drain() { // the announcement sending thread
       try {
-         ms.setInterface(host);
-         ms.setTimeToLive(ttl);
-         ms.send(new DatagramPacket(packet, packet.length, group, port));
-      } finally { ms.close(); }
+         while (true) {
+            Object next[];
+            synchronized(queue) {
+               while (queue.size() == 0) queue.wait();
+               long wait = last + interval - System.currentTimeMillis();
+               if (wait > 0) {
+                  queue.wait(wait);
+                  continue; // interval or queue may have changed
+               }
+               next = (Object[])pending.remove(queue.remove(0));
+               last = System.currentTimeMillis();
+            }
+            try { transmit((byte[])next[0], ((Integer)next[1]).intValue()); }
+            catch(IOException x) { x.printStackTrace(); }
+         }
+      } catch(InterruptedException x) {}
+   }
+   private synchronized void transmit(byte packet[], int ttl)
+      throws IOException {
+      try {
+         if (announcer == null) { // created once, and kept open
+            group = InetAddress.getByName(address);
+            announcer = new MulticastSocket();
+            announcer.setInterface(host);
+         }
+         announcer.setTimeToLive(ttl);
+         announcer.send(new DatagramPacket(packet, packet.length, group, port));
+      } catch(IOException x) { // try a fresh socket next time
+         if (announcer != null) announcer.close();
+         announcer = null;
+         throw x;
+      }
    }
    /**
     * This method starts a thead to listen on the construction {@link #address
-    * address} and {@link #port port}. The listening object will be called on
-    * its public multicast method, with a reference to the calling Multicast
-    * object.  This is to allow the possibility for a single listener, to
-    * monitor multiple multicast objects. If a listener is used to monitor
-    * multiple multicast objects, it may be invoked reentrantly, otherwise it
-    * cannot. Listening will continue until the callback object's multicast
-    * method retruns a non-null value.  If it does, this method would havt to
-    * be called again to restart listening.
+    * address} and {@link #port port}, with a single thread to process the
+    * announcements received. It is equivalent to calling the two argument
+    * listen method with a worker count of one.
     * @param callback An object, presumably local to this VM, which is to
     * receive notifications about announcements.
-    * @throws IllegalArgumentException If the object is actively listening, at
-    * the time of the invocation.
+    * @throws IllegalArgumentException If the callback is actively listening,
+    * at the time of the invocation.
     */
-   public void listen(Object callback) {
-      if (thread == null) {
-         this.callback = callback;
-         thread = new Thread(this);
-         thread.setDaemon(true);
-         thread.start();
-      } else throw new IllegalArgumentException("Already listening");
+   public void listen(Object callback) { listen(callback, 1); }
+   /**
+    * This method starts a thead to listen on the construction {@link #address
+    * address} and {@link #port port}. The listening thread does nothing but
+    * copy the arriving packets into a bounded buffer, so that a slow
+    * listener cannot cause packets to be lost at the socket. A pool of worker
+    * threads reconstitutes the packets, and calls the listening object on
+    * its public multicast method, with a reference to a Multicast object
+    * describing the announcement. This is to allow the possibility for a
+    * single listener, to monitor multiple multicast objects. If a listener
+    * is used to monitor multiple multicast objects, or with more than one
+    * worker, it may be invoked reentrantly, otherwise it cannot. Listening
+    * will continue until the callback object's multicast method retruns a
+    * non-null value.  If it does, this method would havt to be called again
+    * to restart listening.<p>
+    * <i><u>Note</u>:</i> the Multicast object passed to the listener is a
+    * new one, created for each announcement; it is <i>not</i> the listening
+    * object itself, as it was before announcements were processed in
+    * parallel. Its address, port, and host members are those of the
+    * listening object, and its item, beacon, and iaddr members describe
+    * the announcement. A listener which compares it to the listening
+    * object by identity, or calls its methods to e.g. announce, or stop,
+    * should hold its own reference to the listening object instead.<p>
+    * Several callbacks can listen on the same object, each announcement is
+    * passed to all of them in turn. If the object is already listening, the
+    * callback is simply added, using the existing threads. Listening stops
+    * when the last callback has returned non-null, or been {@link
+    * #stop(Object) stopped}.<p>
+    * If the buffer is full, arriving packets are dropped. An arriving packet
+    * identical to one from the same source, still waiting in the buffer, is
+    * discarded as a duplicate. Both are counted.
+    * @param callback An object, presumably local to this VM, which is to
+    * receive notifications about announcements.
+    * @param workers The number of threads processing announcements, it must
+    * be at least one, it is ignored if the object is already listening
+    * @throws IllegalArgumentException If the callback is actively listening,
+    * at the time of the invocation, or the number of workers is less than one.
+    */
+   public void listen(Object callback, int workers) {
+      if (workers < 1)
+         throw new IllegalArgumentException("At least one worker needed");
+      synchronized(slots) {
+         if (callbacks.contains(callback))
+            throw new IllegalArgumentException("Already listening");
+         callbacks.add(callback);
+         if (thread != null) return; // share the running threads
+         final Thread receiver = thread = new Thread(this);
+         receiver.setDaemon(true);
+         for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+               public void run() { dispatch(receiver); }
+            });
+            worker.setDaemon(true);
+            worker.start();
+         }
+         receiver.start();
+      }
+   }
+   /**
+    * This method stops a callback from receiving further announcements. If it
+    * is the last one, the listening threads, and socket, are released
+    * promptly; even while waiting for a packet. The operation is idempotent.
+    * @param callback The object which was receiving notifications
+    */
+   public void stop(Object callback) {
+      synchronized(slots) {
+         callbacks.remove(callback);
+         if (callbacks.size() == 0) quit(thread);
+      }
+   }
+   /**
+    * This method stops all callbacks from receiving further announcements,
+    * and releases the listening threads, and socket, promptly; even while
+    * waiting for a packet. Listening can be started again, via the {@link
+    * #listen listen} method.
+    */
+   public void stop() {
+      synchronized(slots) {
+         callbacks.removeAllElements();
+         quit(thread);
+      }
+   }
+   /**
+    * This method stops listening, as the {@link #stop() stop} method, and
+    * also releases the announcing socket, and thread. Announcements still
+    * waiting to be sent due to {@link #throttle throttling} are discarded.
+    * The object can still be used afterward; announcing, or listening,
+    * allocates the resources again. If the object was provided by the
+    * {@link #group group} method, it is only closed by its last user, and
+    * is then no longer shared.
+    */
+   public void close() {
+      if (key != null) synchronized(groups) {
+         if (users > 1) {
+            users--;
+            return;
+         }
+         users = 0;
+         if (groups.get(key) == this) groups.remove(key);
+      }
+      stop();
+      synchronized(queue) {
+         if (sender != null) sender.interrupt();
+         sender = null;
+         queue.removeAllElements();
+         pending.clear();
+      }
+      synchronized(this) {
+         if (announcer != null) announcer.close();
+         announcer = null;
+      }
+   }
+   /**
+    * This method reports the number of announcement packets received while
+    * listening.
+    * @return The count of packets received, including those dropped, and
+    * those discarded as duplicates
+    */
+   public long getReceived() { synchronized(slots) { return received; } }
+   /**
+    * This method reports the number of announcement packets dropped while
+    * listening, because the workers could not keep pace with their arrival.
+    * @return The count of packets dropped
+    */
+   public long getDropped() { synchronized(slots) { return dropped; } }
+   /**
+    * This method reports the number of announcement packets discarded while
+    * listening, because an identical packet from the same source was still
+    * waiting to be processed, or an identical one was dispatched within the
+    * {@link #dedupe dedupe} window.
+    * @return The count of duplicate packets discarded
+    */
+   public long getDuplicates() { synchronized(slots) { return duplicates; } }
+   /**
+    * This method reports the rate at which announcement packets are being
+    * received while listening, measured over the most recent second.
+    * @return The number of packets received per second
+    */
+   public long getRate() {
+      synchronized(slots) {
+         measure(System.currentTimeMillis());
+         return rate;
+      }
+   }
+   private void measure(long now) { // called holding the slots lock
+      if (now - second < 1000) return;
+      rate = now - second < 2000 ? (received - counted) * 1000 / (now - second) : 0;
+      second = now;
+      counted = received;
+   }
+   /**
+    * This method reports the number of announcement packets actually
+    * decoded while listening. Packets identical to one decoded recently, are
+    * not decoded again.
+    * @return The count of packets decoded
+    */
+   public long getDecoded() { synchronized(decoded) { return decodes; } }
+   /**
+    * This method reports the total time spent decoding announcement packets
+    * while listening. Divided by the count of packets {@link #getDecoded
+    * decoded}, it gives the average cost of decoding an announcement.
+    * @return The time spent decoding, in milliseconds
+    */
+   public long getDecodeTime() { synchronized(decoded) { return decodeTime; } }
+   /**
+    * This method suppresses the repeated dispatch of identical announcement
+    * packets. Hosts typically re-announce the same object reference often;
+    * an announcement whose content is identical to one dispatched to the
+    * listener within the window will be discarded, and counted as a
+    * duplicate. By default there is no window, every announcement is
+    * dispatched. Irrespective of the window, the most recent distinct
+    * announcements are kept decoded, and an identical packet is never
+    * decoded twice.<p>
+    * <i><u>Note</u>:</i> only use a window if the listener need not be
+    * informed of <i>each</i> announcement of an object reference.
+    * @param window The time in milliseconds within which identical
+    * announcements are dispatched only once, zero to dispatch all of them
+    */
+   public void dedupe(long window) {
+      synchronized(decoded) { this.window = window > 0 ? window : 0; }
+   }
+   private Object decode(byte buffer[], int length, Decoder decoder)
+      throws ClassNotFoundException, IOException {
+      Long key = new Long(decoder.hash(buffer, length));
+      long now = System.currentTimeMillis();
+      synchronized(decoded) {
+         Object seen[] = (Object[])decoded.get(key);
+         if (seen != null) {
+            byte bytes[] = (byte[])seen[0];
+            int i = 0;
+            while (i < length && bytes[i] == buffer[i]) i++;
+            if (i == length) { // identical content, no need to decode
+               if (now - ((Long)seen[2]).longValue() < window) return null;
+               seen[2] = new Long(now);
+               return seen[1];
+            }
+         }
+      }
+      Object item = Beacon.isBeacon(buffer, length) ?
+         new Beacon(decoder.wrap(buffer, length)) :
+         decoder.zedmob(buffer, length);
+      long time = System.currentTimeMillis() - now;
+      byte bytes[] = new byte[length];
+      System.arraycopy(buffer, 0, bytes, 0, length);
+      synchronized(decoded) {
+         decodes++;
+         decodeTime += time;
+         if (decoded.put(key, new Object[] { bytes, item, new Long(now) })
+            == null) decodedOrder.add(key);
+         if (decodedOrder.size() > DECODED)
+            decoded.remove(decodedOrder.remove(0)); // forget the oldest
+      }
+      return item;
+   }
+   private void enqueue(DatagramPacket dp) { // called by the receiver only
+      byte data[] = dp.getData();
+      int offset = dp.getOffset(), length = dp.getLength();
+      synchronized(slots) {
+         received++;
+         measure(System.currentTimeMillis());
+         scan: for (int i = 0; i < count; i++) {
+            int j = (head + i) % SLOTS;
+            if (lengths[j] != length || !sources[j].equals(dp.getAddress()))
+               continue;
+            for (int k = 0; k < length; k++)
+               if (slots[j][k] != data[offset + k]) continue scan;
+            duplicates++;
+            return;
+         }
+         if (count == SLOTS) {
+            dropped++;
+            return;
+         }
+         int tail = (head + count++) % SLOTS;
+         if (slots[tail] == null || slots[tail].length < length)
+            slots[tail] = new byte[length];
+         System.arraycopy(data, offset, slots[tail], 0, length);
+         lengths[tail] = length;
+         sources[tail] = dp.getAddress();
+         slots.notify();
+      }
+   }
+   private void dispatch(Thread receiver) { // the worker thread method
+      byte buffer[] = new byte[0x1000];
+      Decoder decoder = new Decoder();
+      try {
+         while (true) {
+            int length;
+            InetAddress source;
+            synchronized(slots) {
+               while (count == 0 && thread == receiver) slots.wait();
+               if (thread != receiver) return;
+               length = lengths[head];
+               source = sources[head];
+               if (buffer.length < length) buffer = new byte[length];
+               System.arraycopy(slots[head], 0, buffer, 0, length);
+               sources[head] = null;
+               head = (head + 1) % SLOTS;
+               count--;
+            }
+            try {
+               Object item = decode(buffer, length, decoder);
+               if (item == null) { // dispatched within the window
+                  synchronized(slots) { duplicates++; }
+                  continue;
+               }
+               Multicast multicast = new Multicast(this, source, item);
+               Object targets[];
+               synchronized(slots) { targets = callbacks.toArray(); }
+               for (int i = 0; i < targets.length; i++) try {
+                  if (Remote.invoke(targets[i], "multicast", multicast) != null)
+                     stop(targets[i]);
+               } catch(Exception x) { x.printStackTrace(); }
+            } catch(Exception x) { x.printStackTrace(); }
+         }
+      } catch(InterruptedException x) {}
+   }
+   private void quit(Thread receiver) {
+      synchronized(slots) {
+         if (thread != receiver || receiver == null) return;
+         thread = null;
+         head = count = 0;
+         slots.notifyAll();
+         if (listener != null) listener.close(); // unblock the receiver
+         listener = null;
+      }
    }
    /**
     * The monitor thread, it listens for multicasts.  It will sleep until
-    * the arrival of a message.  The packet will be reconstituted into a
-    * remote object reference, from its zedmob encapsulation.  The object
-    * reference will be saved into the public item member variable, also the
-    * calling VM's address will be extracted into the public address member
-    * variable. The listener's multicast method will be called next with a
-    * reference to this object. The multicast reference is used to access its
-    * public member variables; the remote announcer's reference and IP address,
-    * as well as the multicast address and port on which it was received.  The
+    * the arrival of a message.  The packet will be copied into the buffer,
+    * from which a worker thread will reconstitute it into a remote object
+    * reference, from its zedmob encapsulation.  A Multicast object for the
+    * announcement is created, its item member variable will contain the
+    * object reference, and its iaddr member variable the calling VM's
+    * address. The listener's multicast method will be called next with a
+    * reference to it. Announcements made with a {@link Beacon beacon} are
+    * parsed directly, its beacon member variable will contain it instead.
+    * The multicast reference is used to access its public
+    * member variables; the remote announcer's reference and IP address, as
+    * well as the multicast address and port on which it was received.  The
     * second two members are of interest in the case where the same object is
     * listening on multiple multicast objects. If the method returns null, the
     * multicast listening will continue, otherwise it will be stopped. Once
     * stopped it can be restarted by the application as necessary, by invoking
-    * the {@link #listen listen} method again.
+    * the {@link #listen listen} method again. The thread blocks in receiving
+    * from the socket; it is stopped by closing the socket, via the {@link
+    * #stop() stop} methods.
     */
    public void run() {
+      Thread receiver = Thread.currentThread();
       try {
          MulticastSocket ms = new MulticastSocket(port);
+         synchronized(slots) {
+            if (thread != receiver) { ms.close(); return; }
+            listener = ms;
+         }
          ms.setInterface(host);
          ms.joinGroup(InetAddress.getByName(address));
-         DatagramPacket dp = new DatagramPacket(new byte[0xFF00], 0xFF00);
-         while(!thread.isInterrupted()) try {
+         byte data[] = new byte[0xFF00];
+         DatagramPacket dp = new DatagramPacket(data, data.length);
+         while(thread == receiver && !receiver.isInterrupted()) try {
+            dp.setLength(data.length); // receive into the whole buffer
             ms.receive(dp);
-            ByteArrayInputStream bais = new ByteArrayInputStream(dp.getData());
-            try {
-               item = (RemoteInvoke)Remote.zedmob(bais);
-               iaddr = dp.getAddress();
-               Object quit = Remote.invoke(callback, "multicast", this);
-               item = null;
-               if (quit != null) break;
-            } catch(Exception x) { x.printStackTrace(); }
-            finally { bais.close(); }
-         } catch(Exception x) { x.printStackTrace(); }
+            enqueue(dp);
+         } catch(Exception x) { if (thread == receiver) x.printStackTrace(); }
          ms.close();
-         ms = null;
-         thread = null;
       } catch(IOException x) { x.printStackTrace(); }
+      synchronized(slots) {
+         if (thread == receiver) callbacks.removeAllElements();
+         quit(receiver);
+      }
    }
    /**
     * The application method loads a zipped marshalled object (zedmob) to a
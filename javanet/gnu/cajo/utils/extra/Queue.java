@@ -84,13 +84,29 @@ public class Queue implements Invoke {
     * instantiated dynamically, upon the first producer invocation.
     */
    protected transient Thread thread;
+   /**
+    * If true, the invocation thread is a daemon, and will not keep the VM
+    * running on its own.
+    */
+   protected final boolean daemon;
    /**
     * The constructor simply assigns the topic for the object and returns, as
     * the object is entirely event driven. <i><u>Note</u>:</i> the descriptor
     * object <i>must</i> be serialisable.
     * @param topic A descriptor object, mutually agreed upon by all participants
     */
-   public Queue(Object topic) { this.topic = topic; }
+   public Queue(Object topic) { this(topic, false); }
+   /**
+    * This constructor also allows the invocation thread to be a daemon, for
+    * queues which serve only as an adjunct to some other service, and so
+    * should not keep the VM running after it has finished.
+    * @param topic A descriptor object, mutually agreed upon by all participants
+    * @param daemon If true, the invocation thread will be a daemon
+    */
+   public Queue(Object topic, boolean daemon) {
+      this.topic  = topic;
+      this.daemon = daemon;
+   }
    /**
     * This method is used to request the topic of the producer/consumer
     * community. <i><u>Note</u>:</i> the object returned may be unknown to
@@ -185,6 +201,7 @@ public class Queue implements Invoke {
                } catch(InterruptedException x) {}
             }
          });
+         thread.setDaemon(daemon);
          thread.start();
       }
       invocations.add(method);
@@ -3,8 +3,14 @@ package gnu.cajo.utils.extra;
 import gnu.cajo.invoke.Remote;
 import gnu.cajo.invoke.RemoteInvoke;
 import gnu.cajo.utils.Multicast;
+import java.util.Vector;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Enumeration;
+import java.io.Serializable;
+import java.rmi.server.RemoteObject;
 import java.rmi.server.ServerNotActiveException;
+import java.lang.reflect.Proxy;
 
 /*
  * Global Remote Object Reference Registry
@@ -32,11 +38,17 @@ import java.rmi.server.ServerNotActiveException;
 /**
  * This class runs as a server. It allows remote VMs to register an object
  * reference with it. Ideally, many instances of the servers would be
- * running on the network. To keep the server memory footprint manageable,
- * only one object is allowed per virtual machine IP address, any
- * subsequent entries overwrite the previous. It also runs a lightwieght task,
- * which periodically runs through the registry, purging object references
- * that have become invalid. To encourage spontaneous internetworking, the
+ * running on the network. Entries are keyed by the host, port, and name
+ * under which their objects are bound, so any number of objects per
+ * virtual machine can be registered; a subsequent entry with the same key
+ * overwrites the previous. References whose names are unknown are keyed
+ * by their server endpoint, and their full RMI object identifier. Entries announced with a {@link
+ * gnu.cajo.utils.Multicast.Beacon beacon} are also indexed by the
+ * fingerprints of their interfaces. It also runs a lightwieght task,
+ * which periodically checks all of the registered references in parallel,
+ * purging those that have become invalid, or fail to respond in time.
+ * Interested parties can subscribe to be notified of changes, rather than
+ * polling the registry. To encourage spontaneous internetworking, the
  * registry will announce itself hourly, on the cajo hailing frequency,
  * and listen on it, for other reference announcements; which it will
  * automatically register.
@@ -45,13 +57,151 @@ import java.rmi.server.ServerNotActiveException;
  * @author John Catherino
  */
 public final class Registry {
+   /**
+    * This class describes the changes to a registry since a given version.
+    * It is what remote clients receive, instead of a copy of the whole
+    * registry, each time they poll.
+    */
+   public static final class Changes implements Serializable {
+      private static final long serialVersionUID = 1L;
+      /**
+       * The epoch of the registry described, i.e. its startup time, in
+       * milliseconds; to be provided when requesting the next changes. The
+       * versions of a registry are only meaningful within an epoch.
+       */
+      public final long epoch;
+      /**
+       * The version of the registry described; to be provided when
+       * requesting the next changes.
+       */
+      public final long version;
+      /**
+       * The entries registered, or replaced, keyed by their server
+       * addresses.
+       */
+      public final Hashtable added;
+      /**
+       * The server addresses of the entries purged.
+       */
+      public final Vector removed;
+      /**
+       * If true, the requested version was too old, or unknown, to
+       * this registry, or of another epoch, e.g. before it restarted. In
+       * that case the added member contains all of its entries, and the
+       * client should discard any it already has.
+       */
+      public final boolean complete;
+      private Changes(long epoch, long version, Hashtable added,
+         Vector removed, boolean complete) {
+         this.epoch    = epoch;
+         this.version  = version;
+         this.added    = added;
+         this.removed  = removed;
+         this.complete = complete;
+      }
+   }
+   /**
+    * The time, in milliseconds, within which a registered reference must
+    * respond to a health check, otherwise it will be purged.
+    */
+   public static final long DEADLINE = 10000L;
+   private static final int CHECKERS = 16; // maximum parallel health checks
+   private static final int HISTORY = 1024; // changes retained for clients
+   private final Vector history = new Vector();
+   private final long epoch = System.currentTimeMillis();
+   private long version;
    private final Hashtable entries = new Hashtable();
+   private final Hashtable beacons = new Hashtable();
+   private final Hashtable fingerprints = new Hashtable();
+   private final Queue changes = new Queue("registry", true);
+   private static String key(String host, int port, String name) {
+      return "//" + host + (port != 0 ? ":" + port : "") + '/' + name;
+   }
+   private static String key(String host, Object ref) { // name unknown
+      Object stub = Proxy.isProxyClass(ref.getClass()) ?
+         Proxy.getInvocationHandler(ref) : ref;
+      if (!(stub instanceof RemoteObject)) // a local object
+         return key(host, 0, '#' + Integer.toHexString(ref.hashCode()));
+      String id = ((RemoteObject)stub).getRef().remoteToString();
+      int ep = id.indexOf("endpoint:["), oid = id.indexOf("objID:[");
+      if (ep == -1 || oid == -1 || id.indexOf(']', oid) == -1)
+         return key(host, 0, '#' + id); // some other kind of reference
+      int end = ep += 10; // the endpoint, then the full object ID
+      while (end < id.length() && ",]".indexOf(id.charAt(end)) == -1) end++;
+      StringBuffer sb = new StringBuffer("//");
+      sb.append(id.substring(ep, end)).append("/#");
+      for (int i = oid + 7; id.charAt(i) != ']'; i++)
+         if (id.charAt(i) != ' ') sb.append(id.charAt(i));
+      return sb.toString();
+   }
+   private void publish(String method, Object args) {
+      synchronized(changes) { // no need to start its thread otherwise
+         if (changes.consumers.isEmpty()) return;
+      }
+      changes.invoke(method, args);
+   }
+   private void add(String key, Object ref, int types[]) {
+      synchronized(entries) {
+         if (ref.equals(entries.get(key))) return; // nothing has changed
+         unindex(key);
+         entries.put(key, ref);
+         for (int i = 0; types != null && i < types.length; i++) {
+            Integer type = new Integer(types[i]);
+            HashSet keys = (HashSet)fingerprints.get(type);
+            if (keys == null) fingerprints.put(type, keys = new HashSet());
+            keys.add(key);
+         }
+         record(key, ref);
+      }
+      publish("added", new Object[] { key, ref });
+   }
+   private void remove(String key, Object ref) {
+      synchronized(entries) { // only if the entry has not since changed
+         if (entries.get(key) != ref) return;
+         unindex(key);
+         record(key, null);
+      }
+      publish("removed", key);
+   }
+   private void record(String key, Object ref) { // holding the entries lock
+      history.add(new Object[] { new Long(++version), key, ref });
+      if (history.size() > HISTORY) history.remove(0);
+      entries.notifyAll(); // wake any waiting for changes
+   }
+   private void unindex(String key) { // called holding the entries lock
+      entries.remove(key);
+      Multicast.Beacon beacon = (Multicast.Beacon)beacons.remove(key);
+      int types[] = beacon != null ? beacon.getFingerprints() : new int[0];
+      for (int i = 0; i < types.length; i++) {
+         Integer type = new Integer(types[i]);
+         HashSet keys = (HashSet)fingerprints.get(type);
+         if (keys != null && keys.remove(key) && keys.isEmpty())
+            fingerprints.remove(type);
+      }
+   }
    /**
     * This method is called solely by this registry's Multicast member
-    * object, to register objects of remote server announcements.
+    * object, to register objects of remote server announcements. An object
+    * announced by beacon is requested from its server only if it is not
+    * already registered, or if it has since been rebound.
     */
    public void multicast(Multicast multicast) {
-      entries.put(multicast.iaddr.getHostAddress(), multicast.item);
+      Multicast.Beacon beacon = multicast.beacon;
+      if (beacon == null) {
+         add(key(multicast.iaddr.getHostAddress(), multicast.item),
+            multicast.item, null);
+         return;
+      }
+      String key = key(beacon.host, beacon.port, beacon.name);
+      Multicast.Beacon prior = (Multicast.Beacon)beacons.get(key);
+      if (prior != null && prior.id == beacon.id) return; // nothing new
+      try {
+         Object item = beacon.fetch();
+         synchronized(entries) {
+            add(key, item, beacon.getFingerprints());
+            beacons.put(key, beacon);
+         }
+      } catch(Exception x) {} // unreachable, ignore it
    }
    /**
     * This method statically called by a remote machine to register an object
@@ -59,15 +209,152 @@ public final class Registry {
     * @param ref The remote reference to the object to be registered
     */
    public void post(RemoteInvoke ref) throws ServerNotActiveException {
-      entries.put(java.rmi.server.RemoteServer.getClientHost(), ref);
+      add(key(java.rmi.server.RemoteServer.getClientHost(), ref), ref, null);
    } // technically it couldn't ever throw this exception at a remote client
    /**
     * This method is called by remote VMs, to request a copy of the remote
     * object reference registry.
-    * @return A hashtable containing all the references, keyed by their
+    * @return A copy of the registry, containing all the references, keyed
+    * by their server addresses, in the form //host:port/name; if the name
+    * under which a reference is bound is unknown, its RMI object identifier
+    * follows the # instead
+    */
+   public Hashtable get() { return (Hashtable)entries.clone(); }
+   /**
+    * This method is called by remote VMs, to request only the changes to
+    * the registry since they last requested them. A client would first
+    * invoke it with an epoch and version of zero, to obtain all of the
+    * entries, and subsequently with the epoch and version most recently
+    * returned to it. If the registry has since restarted, its epoch differs,
+    * and all of its entries are returned.
+    * @param epoch The epoch of the registry the client already has
+    * @param version The version of the registry the client already has
+    * @return The entries added, and removed, since that version; multiple
+    * changes to an entry are reduced to the most recent
+    */
+   public Changes getChangesSince(long epoch, long version) {
+      synchronized(entries) {
+         int start = history.size() - (int)(this.version - version);
+         if (epoch != this.epoch || version <= 0 || version > this.version ||
+            start < 0) return new Changes(this.epoch, this.version,
+               new Hashtable(entries), new Vector(), true);
+         Hashtable added = new Hashtable();
+         HashSet removed = new HashSet();
+         for (int i = start; i < history.size(); i++) {
+            Object change[] = (Object[])history.elementAt(i);
+            if (change[2] != null) {
+               added.put(change[1], change[2]);
+               removed.remove(change[1]);
+            } else {
+               added.remove(change[1]);
+               removed.add(change[1]);
+            }
+         }
+         return new Changes(this.epoch, this.version, added,
+            new Vector(removed), false);
+      }
+   }
+   /**
+    * This method is called by remote VMs, to wait for changes to the
+    * registry since they last requested them; i.e. a long poll. It returns
+    * as soon as there are any, or when the timeout expires, whichever is
+    * first. Alternatively, clients can {@link #subscribe subscribe} to have
+    * changes sent to them.
+    * @param epoch The epoch of the registry the client already has
+    * @param version The version of the registry the client already has
+    * @param timeout The maximum time to wait for changes, in milliseconds
+    * @return The entries added, and removed, since that version; which may
+    * be none, if the timeout expired
+    * @throws InterruptedException If the waiting thread was interrupted
+    */
+   public Changes getChangesSince(long epoch, long version, long timeout)
+      throws InterruptedException {
+      synchronized(entries) {
+         long deadline = System.currentTimeMillis() + timeout;
+         for (long wait = timeout; epoch == this.epoch &&
+            version == this.version && wait > 0;
+            wait = deadline - System.currentTimeMillis()) entries.wait(wait);
+         return getChangesSince(epoch, version);
+      }
+   }
+   /**
+    * This method is called by remote VMs, to request the references of the
+    * registry announced as implementing a given interface. Only objects
+    * announced by beacon carry the fingerprints of their interfaces.
+    * @param type The fully qualified name of the interface
+    * @return A hashtable containing the matching references, keyed by their
     * server addresses
     */
-   public Hashtable get() { return entries; }
+   public Hashtable get(String type) {
+      Hashtable matches = new Hashtable();
+      synchronized(entries) {
+         HashSet keys = (HashSet)fingerprints.get(
+            new Integer(Multicast.Beacon.fingerprint(type)));
+         if (keys != null) for (java.util.Iterator i = keys.iterator();
+            i.hasNext();) {
+            Object key = i.next();
+            matches.put(key, entries.get(key));
+         }
+      }
+      return matches;
+   }
+   /**
+    * This method subscribes an object to be notified of changes to the
+    * registry, asynchronously, via a {@link Queue Queue}. The subscriber is
+    * invoked on its method <tt>added(String key, Object ref)</tt> when an
+    * entry is registered, or replaced, and on <tt>removed(String key)</tt>
+    * when one is purged. A remote subscriber which cannot be reached is
+    * automatically unsubscribed.
+    * @param subscriber The local or remote object to be notified
+    */
+   public void subscribe(Object subscriber) { changes.enqueue(subscriber); }
+   /**
+    * This method stops an object from being notified of changes to the
+    * registry.
+    * @param subscriber The object no longer to be notified
+    */
+   public void unsubscribe(Object subscriber) { changes.dequeue(subscriber); }
+   /**
+    * This method checks all of the registered references, in parallel,
+    * purging those which failed, or did not respond within the {@link
+    * #DEADLINE DEADLINE}. It is called periodically by the registry server.
+    * @throws InterruptedException If the calling thread was interrupted
+    * while waiting for the checks to complete
+    */
+   public void purge() throws InterruptedException {
+      final Hashtable snapshot = new Hashtable(entries);
+      final Vector keys = new Vector(snapshot.keySet());
+      final Hashtable alive = new Hashtable();
+      Thread checkers[] = new Thread[Math.min(CHECKERS, keys.size())];
+      for (int i = 0; i < checkers.length; i++) {
+         checkers[i] = new Thread(new Runnable() {
+            public void run() {
+               while (true) {
+                  Object key;
+                  synchronized(keys) {
+                     if (keys.size() == 0) return;
+                     key = keys.remove(keys.size() - 1);
+                  }
+                  try {
+                     Remote.invoke(snapshot.get(key), "toString", null);
+                     alive.put(key, key);
+                  } catch(Exception x) {}
+               }
+            }
+         });
+         checkers[i].setDaemon(true); // abandoned if past the deadline
+         checkers[i].start();
+      }
+      long deadline = System.currentTimeMillis() + DEADLINE;
+      for (int i = 0; i < checkers.length; i++) {
+         long wait = deadline - System.currentTimeMillis();
+         if (wait > 0) checkers[i].join(wait);
+      }
+      for (Enumeration e = snapshot.keys(); e.hasMoreElements();) {
+         String key = (String)e.nextElement();
+         if (!alive.containsKey(key)) remove(key, snapshot.get(key));
+      }
+   }
    /**
     * Always a good idea; this method describes how to use the registry
     * object, and what its features are. Not unlike these comments
@@ -84,8 +371,18 @@ public final class Registry {
       "All currently registered references can be requested via the\n" +
       "'get' method. It takes no arguments, and returns a\n" +
       "java.util.Hashtable containing the registered remote item\n" +
-      "references, keyed by their server addresses. Additionally, it\n" +
-      "automatically purges inactive references periodically.\n\n" +
+      "references, keyed by their server addresses. Invoked with the\n" +
+      "name of an interface, it returns only the references announced\n" +
+      "as implementing it. Additionally, it automatically purges\n" +
+      "inactive references periodically.\n\n" +
+      "To receive only the changes since a previous request, invoke\n" +
+      "'getChangesSince' with the epoch and version it returned, or\n" +
+      "zeros initially; add a timeout argument to wait for changes.\n" +
+      "If the epoch returned differs, the registry has restarted, and\n" +
+      "its complete contents are returned.\n" +
+      "To be notified of changes, rather than polling, invoke the\n" +
+      "'subscribe' method with a reference to an object having the\n" +
+      "methods added(String key, Object ref), and removed(String key).\n\n" +
       "Enjoy!";
    }
    /**
@@ -106,19 +403,14 @@ public final class Registry {
          Registry registry = new Registry();
          Remote ref = new Remote(registry);
          Multicast multicast = new Multicast();
+         multicast.dedupe(60000L); // re-announcements within a minute
          gnu.cajo.utils.ItemServer.bind(ref, "registry");
          multicast.listen(registry);
          Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
          do { // periodically purge dead references:
             multicast.announce(ref, 200);
             Thread.sleep(3600000L); // wait an hour
-            java.util.Enumeration keys = registry.entries.keys();
-            while (keys.hasMoreElements()) {
-               Object key = keys.nextElement();
-               Object o = registry.entries.get(key);
-               try { Remote.invoke(o, "toString", null); }
-               catch(Exception x) { registry.entries.remove(key); }
-            }
+            registry.purge();
          } while(true);
       } catch(Exception x) { x.printStackTrace(); }
    }